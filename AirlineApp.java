@@ -1,10 +1,35 @@
 import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
  
 public class AirlineApp {
 
@@ -25,15 +50,77 @@ public class AirlineApp {
     public static final String BG_RED = "\u001B[41m";
 
     enum CabinClass {
-        ECONOMY("Economy Class", 1.0, 4, 8),
-        BUSINESS("Business Class", 2.5, 2, 4),
-        FIRST("First Class", 5.0, 0, 2);
+        ECONOMY("Economy Class", 1.0),
+        BUSINESS("Business Class", 2.5),
+        FIRST("First Class", 5.0);
 
         final String label;
         final double multiplier;
-        final int startRow, endRow;
 
-        CabinClass(String l, double m, int s, int e) { label = l; multiplier = m; startRow = s; endRow = e; }
+        CabinClass(String l, double m) { label = l; multiplier = m; }
+    }
+
+    // Aircraft seat layouts. The pattern lists the seat letters of a row with ' ' for aisles;
+    // First rows are at the front, then Business, then Economy to the back.
+    enum SeatLayout {
+        REGIONAL("AB CD", 2, 2, 8),
+        NARROWBODY("ABC DEF", 2, 4, 30),
+        WIDEBODY("ABC DEFG HJK", 2, 8, 38);
+
+        final String pattern, letters;
+        final int rows, seatsPerRow;
+        private final int[] startRow = new int[3], endRow = new int[3]; // by CabinClass ordinal
+        private final CabinClass[] rowCabin; // by row, so cabinOf is one array read on the booking path
+        private String[] codes; // seat index -> "12C", built on first use
+
+        SeatLayout(String pattern, int firstRows, int businessRows, int rows) {
+            this.pattern = pattern;
+            this.letters = pattern.replace(" ", "");
+            this.rows = rows;
+            this.seatsPerRow = letters.length();
+            setRows(CabinClass.FIRST, 0, firstRows);
+            setRows(CabinClass.BUSINESS, firstRows, firstRows + businessRows);
+            setRows(CabinClass.ECONOMY, firstRows + businessRows, rows);
+            rowCabin = new CabinClass[rows];
+            for(CabinClass cc : CabinClass.values()) Arrays.fill(rowCabin, startRow(cc), endRow(cc), cc);
+        }
+
+        private void setRows(CabinClass cc, int start, int end) { startRow[cc.ordinal()] = start; endRow[cc.ordinal()] = end; }
+
+        int startRow(CabinClass cc) { return startRow[cc.ordinal()]; }
+        int endRow(CabinClass cc) { return endRow[cc.ordinal()]; }
+        int capacity() { return rows * seatsPerRow; }
+        int capacity(CabinClass cc) { return (endRow(cc) - startRow(cc)) * seatsPerRow; }
+
+        CabinClass cabinOf(int seat) {
+            int r = seat / seatsPerRow;
+            return r >= 0 && r < rows ? rowCabin[r] : CabinClass.ECONOMY;
+        }
+
+        // "12C" -> row-major seat index, or -1 if it is not a seat on this aircraft
+        int seatIndex(String code) {
+            if(code == null || code.length() < 2) return -1;
+            int c = letters.indexOf(code.charAt(code.length()-1));
+            int r = 0;
+            for(int i=0; i<code.length()-1; i++) {
+                char ch = code.charAt(i);
+                if(ch < '0' || ch > '9' || r > rows) return -1;
+                r = r * 10 + (ch - '0');
+            }
+            if(c < 0 || r < 1 || r > rows) return -1;
+            return (r - 1) * seatsPerRow + c;
+        }
+
+        String seatCode(int seat) {
+            if(codes == null) {
+                String[] c = new String[capacity()];
+                for(int i=0; i<c.length; i++) c[i] = (i / seatsPerRow + 1) + String.valueOf(letters.charAt(i % seatsPerRow));
+                codes = c;
+            }
+            return codes[seat];
+        }
+
+        static SeatLayout parse(String s) { return s == null || s.trim().isEmpty() ? REGIONAL : valueOf(s.trim().toUpperCase()); }
     }
 
     enum MealType {
@@ -44,46 +131,168 @@ public class AirlineApp {
         CHEF("Chef's Special", 1200);
 
         final String label;
-        final double price;
+        final long price; // paise
 
-        MealType(String l, double p) { label = l; price = p; }
+        MealType(String l, long rupees) { label = l; price = Money.rupees(rupees); }
+    }
+
+    // Amounts are long paise, so sums and balance checks are exact. Files and the wire carry
+    // rupees with two decimals ("4675.50"); rows written before this ("4675.0") parse the same.
+    static final class Money {
+        static long rupees(long r) { return r * 100; }
+
+        // Rupees as typed or stored; anything beyond two decimals is rounded half up
+        static long parse(String s) {
+            try {
+                return new java.math.BigDecimal(s.trim()).movePointRight(2).setScale(0, java.math.RoundingMode.HALF_UP).longValueExact();
+            } catch (ArithmeticException e) { throw new NumberFormatException("amount out of range: " + s); }
+        }
+
+        static String format(long paise) {
+            long abs = Math.abs(paise);
+            StringBuilder sb = new StringBuilder(24);
+            if(paise < 0) sb.append('-');
+            sb.append(abs / 100).append('.');
+            if(abs % 100 < 10) sb.append('0');
+            return sb.append(abs % 100).toString();
+        }
     }
 
     static class DatabaseManager {
-        private static final String FILE_USERS = "users.csv";
-        private static final String FILE_BOOKINGS = "bookings.csv";
-        private static final String FILE_FLIGHTS = "flights.csv"; // New in v7
+        private static String FILE_USERS = "users.csv";
+        private static String FILE_BOOKINGS = "bookings.csv";
+        private static String FILE_FLIGHTS = "flights.csv"; // New in v7
+        private static String FILE_JOURNAL = "journal.log";
+        private static String FILE_SNAPSHOT = "snapshot.bin";
+        private static String FILE_STORE = "store.kv";
+        private static String DIR_ARCHIVE = "archive";
+        private static String DIR_MANIFESTS = "manifests";
+        private static String FILE_METRICS = "metrics.log";
+        private static String FILE_LEDGER = "wallets.ledger";
+        private static String FILE_LEDGER_CHECKPOINT = "wallets.checkpoint";
+        private static String FILE_CHANGES = "changes.log";
+        private static String FILE_PNR_MARK = "pnr.mark";
+        static final String BOOKINGS_HEADER = "pnr,flightId,seat,owner,class,meal,price,username,date";
+
+        static StorageEngine engine = new CsvStorage(); // --storage=csv|kv
+
+        // Snapshot mode (--snapshot): a binary image of the store is written on clean shutdown and
+        // memory-mapped on the next start instead of parsing the CSVs, as long as none changed since.
+        static boolean snapshots = false;
+
+        // Journaled mode (--journal): mutations are appended to FILE_JOURNAL and folded
+        // back into the CSVs by compaction instead of rewriting a whole file per change.
+        enum JournalOp { USER_ADD, FLIGHT_ADD, FLIGHT_DELETE, BOOKING_ADD, BOOKING_DELETE, WALLET_SET }
+
+        static boolean journaled = false;
+        static int compactThreshold = 50000; // records before a background compaction
+        private static final Object journalLock = new Object();
+        private static final Object compactLock = new Object();
+        private static int journalRecords = 0;
+        private static ExecutorService compactor;
+        private static boolean compactQueued = false;
+
+        // Appends go through one long-lived buffered channel per file. When the buffer
+        // reaches disk is decided by the sync policy (--fsync=write|group|shutdown).
+        enum SyncPolicy { PER_WRITE, GROUP_COMMIT, ON_SHUTDOWN }
+
+        static SyncPolicy syncPolicy = SyncPolicy.GROUP_COMMIT;
+        static int groupCommitMillis = 20;
+        static int writeBufferBytes = 64 * 1024;
+        private static final Map<String, AppendChannel> writers = new ConcurrentHashMap<>();
+        private static ScheduledExecutorService groupCommitter;
+        private static boolean shutdownHooked = false;
+
+        // A storage failure the caller cannot act on: reported and counted, never thrown
+        static void ioError(String what, Exception e) {
+            Metrics.ioError();
+            System.out.println(RED + what + " Error: " + e.getMessage() + RESET);
+        }
+
+        // Points the DB at another directory (benchmarks run against scratch data)
+        public static void useDirectory(String dir) {
+            FILE_USERS = Paths.get(dir, "users.csv").toString();
+            FILE_BOOKINGS = Paths.get(dir, "bookings.csv").toString();
+            FILE_FLIGHTS = Paths.get(dir, "flights.csv").toString();
+            FILE_JOURNAL = Paths.get(dir, "journal.log").toString();
+            FILE_SNAPSHOT = Paths.get(dir, "snapshot.bin").toString();
+            FILE_STORE = Paths.get(dir, "store.kv").toString();
+            DIR_ARCHIVE = Paths.get(dir, "archive").toString();
+            DIR_MANIFESTS = Paths.get(dir, "manifests").toString();
+            FILE_METRICS = Paths.get(dir, "metrics.log").toString();
+            FILE_LEDGER = Paths.get(dir, "wallets.ledger").toString();
+            FILE_LEDGER_CHECKPOINT = Paths.get(dir, "wallets.checkpoint").toString();
+            FILE_CHANGES = Paths.get(dir, "changes.log").toString();
+            FILE_PNR_MARK = Paths.get(dir, "pnr.mark").toString();
+        }
+
+        static String metricsFile() { return FILE_METRICS; }
+
+        static String manifestDir() { return DIR_MANIFESTS; }
+
+        static String changesFile() { return FILE_CHANGES; }
+
+        // PNR high-water marks (FILE_PNR_MARK), one "node,sequence" line per node: the end of the
+        // block of sequence numbers a node may issue, synced before the first of them is handed out
+        static long loadPnrMark(char node) {
+            try {
+                for(String line : Files.readAllLines(Paths.get(FILE_PNR_MARK))) {
+                    String[] d = line.split(",");
+                    if(d.length == 2 && d[0].length() == 1 && d[0].charAt(0) == node) return Long.parseLong(d[1].trim());
+                }
+            } catch (NoSuchFileException e) {
+            } catch (IOException | NumberFormatException e) { ioError("PNR Mark", e); }
+            return 0;
+        }
+
+        static void savePnrMark(char node, long mark) {
+            if(engine.readOnly()) return;
+            Path target = Paths.get(FILE_PNR_MARK), tmp = Paths.get(FILE_PNR_MARK + ".tmp");
+            try {
+                StringBuilder sb = new StringBuilder();
+                if(Files.exists(target)) {
+                    for(String line : Files.readAllLines(target)) if(!line.startsWith(node + ",")) sb.append(line).append('\n');
+                }
+                sb.append(node).append(',').append(mark).append('\n');
+                try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ch.write(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)));
+                    ch.force(false);
+                }
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) { ioError("PNR Mark", e); }
+        }
 
         public static void initDB() {
-            createFileIfNotExists(FILE_USERS, "username,password,name,isAdmin,wallet");
-            createFileIfNotExists(FILE_BOOKINGS, "pnr,flightId,seat,owner,class,meal,price");
-            createFileIfNotExists(FILE_FLIGHTS, "id,origin,destination,time,price");
-            
+            if(!shutdownHooked) {
+                Runtime.getRuntime().addShutdownHook(new Thread(DatabaseManager::shutdown));
+                shutdownHooked = true;
+            }
+            engine.open();
 
-            if(countLines(FILE_USERS) <= 1) {
+            if(engine.isEmpty(StorageEngine.Table.USERS)) {
                 saveUser(new User("admin", "admin", "System Administrator", true));
                 saveUser(new User("Aatreyee", "misra", "Aatreyee Misra", false));
             }
 
-            if(countLines(FILE_FLIGHTS) <= 1) {
+            if(engine.isEmpty(StorageEngine.Table.FLIGHTS)) {
                 seedFlights();
             }
         }
 
         private static void seedFlights() {
             List<Flight> seed = new ArrayList<>();
-            seed.add(new Flight("AI-101", "DEL", "BOM", "08:00", 5500));
-            seed.add(new Flight("6E-505", "BOM", "BLR", "10:30", 4200));
-            seed.add(new Flight("UK-992", "DEL", "CCU", "14:15", 4800));
-            seed.add(new Flight("SG-202", "MAA", "DEL", "06:00", 6100));
-            seed.add(new Flight("QP-110", "BLR", "PNQ", "19:45", 3800));
-            seed.add(new Flight("AI-440", "HYD", "DEL", "07:30", 5100));
-            seed.add(new Flight("6E-202", "AMD", "GOI", "16:20", 3500));
-            seed.add(new Flight("UK-818", "BLR", "BOM", "18:00", 4600));
-            seed.add(new Flight("SG-707", "CCU", "IXB", "11:10", 2900));
-            seed.add(new Flight("I5-320", "DEL", "SXR", "09:45", 6200));
-            seed.add(new Flight("AI-881", "DEL", "IXL", "05:40", 8500));
-            seed.add(new Flight("6E-636", "ATQ", "DEL", "20:15", 3100));
+            seed.add(new Flight("AI-101", "DEL", "BOM", "08:00", Money.rupees(5500)));
+            seed.add(new Flight("6E-505", "BOM", "BLR", "10:30", Money.rupees(4200)));
+            seed.add(new Flight("UK-992", "DEL", "CCU", "14:15", Money.rupees(4800)));
+            seed.add(new Flight("SG-202", "MAA", "DEL", "06:00", Money.rupees(6100)));
+            seed.add(new Flight("QP-110", "BLR", "PNQ", "19:45", Money.rupees(3800)));
+            seed.add(new Flight("AI-440", "HYD", "DEL", "07:30", Money.rupees(5100)));
+            seed.add(new Flight("6E-202", "AMD", "GOI", "16:20", Money.rupees(3500)));
+            seed.add(new Flight("UK-818", "BLR", "BOM", "18:00", Money.rupees(4600)));
+            seed.add(new Flight("SG-707", "CCU", "IXB", "11:10", Money.rupees(2900)));
+            seed.add(new Flight("I5-320", "DEL", "SXR", "09:45", Money.rupees(6200)));
+            seed.add(new Flight("AI-881", "DEL", "IXL", "05:40", Money.rupees(8500)));
+            seed.add(new Flight("6E-636", "ATQ", "DEL", "20:15", Money.rupees(3100)));
             
             for(Flight f : seed) saveFlight(f);
         }
@@ -92,145 +301,3751 @@ public class AirlineApp {
             File f = new File(filename);
             if(!f.exists()) {
                 try (PrintWriter pw = new PrintWriter(new FileWriter(f))) {
-                    pw.println(header);
-                } catch (IOException e) { System.out.println(RED + "DB Init Error: " + e.getMessage() + RESET); }
+                    if(header != null) pw.println(header);
+                } catch (IOException e) { ioError("DB Init", e); }
             }
         }
 
         private static int countLines(String filename) {
-            try { return (int) Files.lines(Paths.get(filename)).count(); } 
-            catch (IOException e) { return 0; }
+            closeWriter(filename);
+            try (java.util.stream.Stream<String> lines = Files.lines(Paths.get(filename))) { return (int) lines.count(); }
+            catch (IOException | UncheckedIOException e) { return 0; }
+        }
+
+        // True if the CSV has anything after its header; reads two lines at most
+        private static boolean hasRows(String filename) {
+            closeWriter(filename);
+            try (BufferedReader br = new BufferedReader(new FileReader(filename))) { return br.readLine() != null && br.readLine() != null; }
+            catch (IOException e) { return false; }
+        }
+
+        // Everything a snapshot depends on, in the order their stamps are recorded
+        static String[] snapshotSources() { return engine.files(); }
+
+        static String snapshotFile() { return FILE_SNAPSHOT; }
+
+        static User parseUser(String[] data) {
+            User u = new User(data[0], data[1], data[2], Boolean.parseBoolean(data[3]));
+            u.wallet = Money.parse(data[4]);
+            return u;
+        }
+
+        static Flight parseFlight(String[] data) {
+            SeatLayout layout = data.length >= 6 ? SeatLayout.parse(data[5]) : SeatLayout.REGIONAL; // older rows have no layout column
+            Flight f = new Flight(data[0], data[1], data[2], data[3], Money.parse(data[4]), layout);
+            if(data.length >= 7 && !data[6].isEmpty()) f.duration = Integer.parseInt(data[6]);
+            return f;
+        }
+
+        // Resolves a bookings.csv row against the flight index and marks its seat on that day; null if
+        // corrupt or if another booking already holds that seat
+        static Ticket parseBooking(String[] data, Map<String, Flight> flights) {
+            Ticket t = parseTicket(data, flights);
+            return t != null && takeSeat(t) ? t : null;
+        }
+
+        private static boolean takeSeat(Ticket t) { return InventoryStore.instance(t.f, t.date).seats.tryTake(t.f.layout.seatIndex(t.seat)); }
+
+        // The row as a ticket, leaving the seat inventory alone (archived days have none); null if corrupt
+        static Ticket parseTicket(String[] data, Map<String, Flight> flights) {
+            Flight f = flights.get(data[1]); // O(1) via DataStore.flightIndex
+            if(f == null) return null;
+            if(f.layout.seatIndex(data[2]) < 0) return null;
+            try {
+                String username = data.length >= 8 && !data[7].isEmpty() ? data[7] : null; // older rows only carry the display name
+                LocalDate date = InventoryStore.date(data.length >= 9 && !data[8].isEmpty() ? LocalDate.parse(data[8]).toEpochDay() : InventoryStore.today()); // undated rows depart today
+                return new Ticket(f, date, data[2], data[3], username, CabinClass.valueOf(data[4]), MealType.valueOf(data[5]), Money.parse(data[6]), data[0]);
+            } catch (Exception e) { return null; }
         }
 
+        // The facade times the hot paths into Metrics; the engines count their own I/O errors
         public static Map<String, User> loadUsers() {
-            Map<String, User> users = new HashMap<>();
-            try (BufferedReader br = new BufferedReader(new FileReader(FILE_USERS))) {
-                String line; br.readLine(); // Skip header
-                while ((line = br.readLine()) != null) {
-                    String[] data = line.split(",");
-                    if(data.length >= 5) {
-                        User u = new User(data[0], data[1], data[2], Boolean.parseBoolean(data[3]));
-                        u.wallet = Double.parseDouble(data[4]);
-                        users.put(data[0], u);
-                    }
-                }
-            } catch (IOException e) { }
-            return users;
+            long t0 = Metrics.start();
+            try { return engine.loadUsers(); } finally { Metrics.stop(Metrics.Op.LOAD_USERS, t0); }
         }
 
         public static List<Flight> loadFlights() {
-            List<Flight> flights = new ArrayList<>();
-            try (BufferedReader br = new BufferedReader(new FileReader(FILE_FLIGHTS))) {
-                String line; br.readLine();
-                while ((line = br.readLine()) != null) {
-                    String[] data = line.split(",");
-                    if(data.length >= 5) {
-                        flights.add(new Flight(data[0], data[1], data[2], data[3], Double.parseDouble(data[4])));
-                    }
-                }
-            } catch (Exception e) {}
-            return flights;
+            long t0 = Metrics.start();
+            try { return engine.loadFlights(); } finally { Metrics.stop(Metrics.Op.LOAD_FLIGHTS, t0); }
         }
 
-        public static void loadBookings(List<Flight> flights, List<Ticket> tickets) {
-            try (BufferedReader br = new BufferedReader(new FileReader(FILE_BOOKINGS))) {
-                String line; br.readLine();
-                while ((line = br.readLine()) != null) {
-                    String[] data = line.split(",");
-                    if(data.length >= 7) {
-                        String flightId = data[1];
-                        Flight f = flights.stream().filter(fl -> fl.id.equals(flightId)).findFirst().orElse(null);
-                        if(f != null) {
-                            String seat = data[2];
-                            // Mark seat
-                            try {
-                                int r = Integer.parseInt(seat.substring(0, seat.length()-1)) - 1;
-                                int c = seat.charAt(seat.length()-1) - 'A';
-                                f.seats[r][c] = true;
-                                tickets.add(new Ticket(f, seat, data[3], CabinClass.valueOf(data[4]), MealType.valueOf(data[5]), Double.parseDouble(data[6]), data[0]));
-                            } catch (Exception e) { /* Ignore corrupt booking lines */ }
-                        }
-                    }
-                }
-            } catch (Exception e) {}
+        public static void loadBookings(Map<String, Flight> flights, Map<String, Ticket> tickets) {
+            long t0 = Metrics.start();
+            try { engine.loadBookings(flights, tickets); } finally { Metrics.stop(Metrics.Op.LOAD_BOOKINGS, t0); }
         }
 
+        public static void replay(java.util.function.Consumer<String[]> apply) { engine.replay(apply); }
+
         public static void saveUser(User u) {
-            appendToCSV(FILE_USERS, String.join(",", u.username, u.pass, u.name, String.valueOf(u.isAdmin), String.valueOf(u.wallet)));
+            engine.saveUser(u);
+            ChangeLog.publish(JournalOp.USER_ADD, userRow(u));
         }
 
         public static void saveFlight(Flight f) {
-            appendToCSV(FILE_FLIGHTS, String.join(",", f.id, f.org, f.dst, f.time, String.valueOf(f.price)));
+            engine.saveFlight(f);
+            ChangeLog.publish(JournalOp.FLIGHT_ADD, flightRow(f));
         }
 
         public static void saveBooking(Ticket t) {
-            appendToCSV(FILE_BOOKINGS, String.join(",", t.bookingId, t.f.id, t.seat, t.owner, t.travelClass.name(), t.meal.name(), String.valueOf(t.paidPrice)));
+            long t0 = Metrics.start();
+            try { engine.saveBooking(t); } finally { Metrics.stop(Metrics.Op.SAVE_BOOKING, t0); }
+            ChangeLog.publish(JournalOp.BOOKING_ADD, bookingRow(t));
+        }
+
+        public static void updateUserWallet(User u) {
+            long t0 = Metrics.start();
+            try { engine.updateUserWallet(u); } finally { Metrics.stop(Metrics.Op.UPDATE_WALLET, t0); }
+            ChangeLog.publish(JournalOp.WALLET_SET, u.username + "," + Money.format(u.wallet));
+        }
+
+        public static void deleteBooking(String pnr) {
+            long t0 = Metrics.start();
+            try { engine.deleteBooking(pnr); } finally { Metrics.stop(Metrics.Op.DELETE_BOOKING, t0); }
+            ChangeLog.publish(JournalOp.BOOKING_DELETE, pnr);
+        }
+
+        public static void deleteFlight(String flightId) {
+            engine.deleteFlight(flightId);
+            ChangeLog.publish(JournalOp.FLIGHT_DELETE, flightId);
         }
 
+        public static void saveBatch(List<Flight> flights, List<Ticket> tickets, Collection<User> wallets) {
+            long t0 = Metrics.start();
+            try { engine.saveBatch(flights, tickets, wallets); } finally { Metrics.stop(Metrics.Op.SAVE_BATCH, t0); }
+            ChangeLog.publishBatch(flights, tickets, wallets);
+        }
+
+        // Moves a past day's bookings out of the live store; the archive file is on disk before the rows go
+        static void archiveBookings(LocalDate date, List<Ticket> tickets) {
+            if(engine.readOnly()) return; // a replica drops the day from memory; the primary archives it
+            String file = archiveFile(date);
+            new File(DIR_ARCHIVE).mkdirs();
+            createFileIfNotExists(file, BOOKINGS_HEADER);
+            for(Ticket t : tickets) appendToCSV(file, bookingRow(t));
+            closeWriter(file);
+            writeArchiveTotals(date);
+            Set<String> pnrs = new HashSet<>();
+            for(Ticket t : tickets) pnrs.add(t.bookingId);
+            engine.deleteBookings(pnrs);
+            ChangeLog.publishDeletes(pnrs);
+        }
+
+        // An archived day's bookings; a crash mid-archive can leave a row twice, so PNRs are deduplicated.
+        // Rows that cannot be read back (a deleted flight, a corrupt field) are reported with their line.
+        static List<Ticket> loadArchive(LocalDate date, Map<String, Flight> flights) {
+            Map<String, Ticket> tickets = new LinkedHashMap<>();
+            String file = archiveFile(date);
+            if(!Files.exists(Paths.get(file))) return new ArrayList<>();
+            closeWriter(file);
+            try (CsvReader csv = new CsvReader(file)) {
+                csv.next(); // Skip header
+                while(csv.next()) {
+                    if(csv.blank()) continue;
+                    String[] d = csv.text().split(",", -1);
+                    Ticket t = d.length < 7 ? null : parseTicket(d, flights);
+                    if(t != null) tickets.putIfAbsent(t.bookingId, t);
+                    else csv.reject(d.length < 7 ? "expected at least 7 fields, found " + d.length : !flights.containsKey(d[1]) ? "unknown flight " + d[1] : "bad seat, date, class, meal or price");
+                }
+            } catch (IOException e) { ioError("Archive Read", e); }
+            return new ArrayList<>(tickets.values());
+        }
+
+        private static String archiveFile(LocalDate date) { return Paths.get(DIR_ARCHIVE, "bookings-" + date + ".csv").toString(); }
+        private static String totalsFile(LocalDate date) { return Paths.get(DIR_ARCHIVE, "totals-" + date + ".csv").toString(); }
+
+        // A day's sales beside its archive, one row per flight, route, class and meal:
+        // "flightId,origin,destination,class,meal,bookings,revenue". Rebuilt from the whole archive file
+        // (rows of deleted flights included) before the live rows go, so lifetime figures outlive them.
+        private static void writeArchiveTotals(LocalDate date) {
+            Map<String, long[]> rows = new TreeMap<>();
+            Set<String> seen = new HashSet<>();
+            List<String> lines;
+            try { lines = readAllLines(archiveFile(date)); } catch (IOException e) { ioError("Archive Totals", e); return; } // keeps the old totals
+            for(int i=1; i<lines.size(); i++) {
+                String[] d = lines.get(i).split(",", -1);
+                if(d.length < 7 || !seen.add(d[0])) continue;
+                try {
+                    Flight f = DataStore.findFlight(d[1]);
+                    long[] v = rows.computeIfAbsent(String.join(",", d[1], f == null ? "" : f.org, f == null ? "" : f.dst, d[4], d[5]), k -> new long[2]);
+                    v[1] += Money.parse(d[6]);
+                    v[0]++;
+                } catch (NumberFormatException e) { }
+            }
+            List<String> out = new ArrayList<>();
+            out.add("flightId,origin,destination,class,meal,bookings,revenue");
+            for(Map.Entry<String, long[]> e : rows.entrySet()) out.add(e.getKey() + "," + e.getValue()[0] + "," + Money.format(e.getValue()[1]));
+            Path target = Paths.get(totalsFile(date)), tmp = Paths.get(totalsFile(date) + ".tmp");
+            try {
+                Files.write(tmp, out);
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) { ioError("Archive Totals", e); }
+        }
+
+        // Streams every archived day's totals rows (the columns of writeArchiveTotals) to the sink
+        static void loadArchiveTotals(java.util.function.BiConsumer<LocalDate, String[]> sink) {
+            File[] files = new File(DIR_ARCHIVE).listFiles((dir, name) -> name.startsWith("totals-") && name.endsWith(".csv"));
+            if(files == null) return;
+            for(File file : files) {
+                LocalDate date;
+                try { date = LocalDate.parse(file.getName().substring(7, file.getName().length() - 4)); } catch (java.time.DateTimeException e) { continue; }
+                List<String> lines;
+                try { lines = readAllLines(file.getPath()); } catch (IOException e) { ioError("Archive Totals", e); continue; }
+                for(int i=1; i<lines.size(); i++) sink.accept(date, lines.get(i).split(",", -1));
+            }
+        }
+
+        static String userRow(User u) { return String.join(",", u.username, u.pass, u.name, String.valueOf(u.isAdmin), Money.format(u.wallet)); }
+        static String flightRow(Flight f) { return String.join(",", f.id, f.org, f.dst, f.time, Money.format(f.price), f.layout.name(), String.valueOf(f.duration)); }
+        static String bookingRow(Ticket t) { return String.join(",", t.bookingId, t.f.id, t.seat, t.owner, t.travelClass.name(), t.meal.name(), Money.format(t.paidPrice), t.username == null ? "" : t.username, t.date.toString()); }
+
+        // Serialises whole-file rewrites against appends to the same file
+        private static final Map<String, Object> fileLocks = new ConcurrentHashMap<>();
+        private static Object fileLock(String filename) { return fileLocks.computeIfAbsent(filename, k -> new Object()); }
+
         private static void appendToCSV(String filename, String data) {
-            try (PrintWriter pw = new PrintWriter(new FileWriter(filename, true))) {
-                pw.println(data);
-            } catch (IOException e) {}
+            try {
+                synchronized(fileLock(filename)) { writers.computeIfAbsent(filename, AppendChannel::open).append(data); }
+            } catch (IOException | UncheckedIOException e) { ioError("DB Write", e); }
         }
 
-        public static void updateUserWallet(User u) {
-            List<String> lines = readAllLines(FILE_USERS);
-            for(int i=0; i<lines.size(); i++) {
-                if(lines.get(i).startsWith(u.username + ",")) {
-                    lines.set(i, String.join(",", u.username, u.pass, u.name, String.valueOf(u.isAdmin), String.valueOf(u.wallet)));
+        private static void appendAllToCSV(String filename, List<String> lines) {
+            if(lines.isEmpty()) return;
+            try {
+                synchronized(fileLock(filename)) { writers.computeIfAbsent(filename, AppendChannel::open).appendAll(lines); }
+            } catch (IOException | UncheckedIOException e) { ioError("DB Write", e); }
+        }
+
+        static class AppendChannel {
+            private final FileChannel channel;
+            private final Writer out;
+            private boolean dirty = false;
+
+            private AppendChannel(FileChannel channel) {
+                this.channel = channel;
+                this.out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8), writeBufferBytes);
+            }
+
+            static AppendChannel open(String filename) {
+                try {
+                    if(syncPolicy == SyncPolicy.GROUP_COMMIT) startGroupCommit();
+                    return new AppendChannel(FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+                } catch (IOException e) { throw new UncheckedIOException(e); }
+            }
+
+            synchronized void append(String line) throws IOException {
+                out.write(line);
+                out.write('\n');
+                dirty = true;
+                if(syncPolicy == SyncPolicy.PER_WRITE) sync();
+            }
+
+            // A batch is committed as a unit: one sync after the last line, under every policy but shutdown
+            synchronized void appendAll(List<String> lines) throws IOException {
+                for(String line : lines) {
+                    out.write(line);
+                    out.write('\n');
+                }
+                dirty = true;
+                if(syncPolicy != SyncPolicy.ON_SHUTDOWN) sync();
+            }
+
+            // Buffers without syncing, for a caller that syncs once it has let go of its own locks
+            synchronized void buffer(List<String> lines) throws IOException {
+                for(String line : lines) {
+                    out.write(line);
+                    out.write('\n');
                 }
+                dirty = true;
+            }
+
+            synchronized void flush() throws IOException { out.flush(); }
+
+            synchronized void sync() throws IOException {
+                if(!dirty) return;
+                out.flush();
+                channel.force(false);
+                dirty = false;
+            }
+
+            synchronized void close() throws IOException {
+                sync();
+                out.close();
             }
-            writeAllLines(FILE_USERS, lines);
         }
 
-        public static void deleteBooking(String pnr) {
-            List<String> lines = readAllLines(FILE_BOOKINGS);
-            lines.removeIf(line -> line.startsWith(pnr + ","));
-            writeAllLines(FILE_BOOKINGS, lines);
+        private static synchronized void startGroupCommit() {
+            if(groupCommitter != null) return;
+            groupCommitter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "csv-group-commit");
+                t.setDaemon(true);
+                return t;
+            });
+            groupCommitter.scheduleAtFixedRate(DatabaseManager::syncWriters, groupCommitMillis, groupCommitMillis, TimeUnit.MILLISECONDS);
         }
 
-        public static void deleteFlight(String flightId) {
-            List<String> lines = readAllLines(FILE_FLIGHTS);
-            lines.removeIf(line -> line.startsWith(flightId + ","));
-            writeAllLines(FILE_FLIGHTS, lines);
+        public static void syncWriters() {
+            for(AppendChannel w : writers.values()) {
+                try { w.sync(); } catch (IOException e) { ioError("DB Sync", e); }
+            }
         }
 
-        private static List<String> readAllLines(String file) {
-            try { return Files.readAllLines(Paths.get(file)); } catch(Exception e) { return new ArrayList<>(); }
+        private static void bufferToCSV(String filename, List<String> lines) {
+            if(lines.isEmpty()) return;
+            try {
+                synchronized(fileLock(filename)) { writers.computeIfAbsent(filename, AppendChannel::open).buffer(lines); }
+            } catch (IOException | UncheckedIOException e) { ioError("DB Write", e); }
         }
-        private static void writeAllLines(String file, List<String> lines) {
-            try { Files.write(Paths.get(file), lines); } catch(Exception e) {}
+
+        private static void syncWriter(String filename) {
+            AppendChannel w = writers.get(filename);
+            if(w == null) return;
+            try { w.sync(); } catch (IOException e) { ioError("DB Sync", e); }
         }
-    }
 
-    static class DataStore {
-        static List<Flight> flights = new ArrayList<>();
-        static List<Ticket> tickets = new ArrayList<>();
-        static Map<String, User> users = new HashMap<>();
-        static User currentUser = null;
+        // Pushes buffered appends to the OS so the file can be read back while it stays open
+        private static void flushWriter(String filename) {
+            AppendChannel w = writers.get(filename);
+            if(w == null) return;
+            try { w.flush(); } catch (IOException e) { ioError("DB Flush", e); }
+        }
 
-        public static void refreshData() {
-            users = DatabaseManager.loadUsers();
-            flights = DatabaseManager.loadFlights(); // Now loaded from DB
-            tickets.clear();
-            DatabaseManager.loadBookings(flights, tickets);
+        // Must run before a file is read back or replaced, so buffered appends are not lost
+        private static void closeWriter(String filename) {
+            AppendChannel w = writers.remove(filename);
+            if(w == null) return;
+            try { w.close(); } catch (IOException e) { ioError("DB Close", e); }
         }
-    }
 
-    public static void main(String[] args) {
-        showSplashScreen();
-        DatabaseManager.initDB();
-        DataStore.refreshData();
-        randomizeSeats(); 
+        // Exit hook: the engine drains its writers and compacts, then the snapshot is taken
+        public static void shutdown() {
+            ChangeLog.close();
+            WalletLedger.close();
+            engine.close();
+            if(snapshots && DataStore.populated) Snapshot.write(FILE_SNAPSHOT);
+        }
+
+        static int utf8Length(String s) {
+            int n = s.length();
+            for(int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if(c >= 0x800) n += Character.isSurrogate(c) ? 1 : 2; // a surrogate pair is 4 bytes in all
+                else if(c >= 0x80) n++;
+            }
+            return n;
+        }
+
+        // A missing file reads as empty; any other failure is thrown, so it is never mistaken for an empty table
+        private static List<String> readAllLines(String file) throws IOException {
+            closeWriter(file);
+            try { return Files.readAllLines(Paths.get(file)); } catch (NoSuchFileException e) { return new ArrayList<>(); }
+        }
+        private static void writeAllLines(String file, List<String> lines) throws IOException {
+            closeWriter(file);
+            Files.write(Paths.get(file), lines);
+        }
+
+        // --- JOURNAL ---
+        private static String rotatedJournal() { return FILE_JOURNAL + ".compacting"; }
+
+        private static void startJournal() {
+            createFileIfNotExists(FILE_JOURNAL, null);
+            journalRecords = countLines(FILE_JOURNAL);
+            compactor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "journal-compactor");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        private static void journal(JournalOp op, String payload) {
+            boolean compact;
+            synchronized(journalLock) {
+                appendToCSV(FILE_JOURNAL, op.name() + "," + payload);
+                compact = ++journalRecords >= compactThreshold && !compactQueued;
+                if(compact) compactQueued = true;
+            }
+            if(compact) compactor.submit(DatabaseManager::compactJournal);
+        }
+
+        private static void journalAll(List<String> records) {
+            boolean compact;
+            synchronized(journalLock) {
+                appendAllToCSV(FILE_JOURNAL, records);
+                journalRecords += records.size();
+                compact = journalRecords >= compactThreshold && !compactQueued;
+                if(compact) compactQueued = true;
+            }
+            if(compact) compactor.submit(DatabaseManager::compactJournal);
+        }
+
+        // Streams every pending record (an interrupted compaction first, then the live log) to the sink
+        public static void replayJournal(java.util.function.Consumer<String[]> sink) {
+            closeWriter(FILE_JOURNAL);
+            for(String file : new String[]{ rotatedJournal(), FILE_JOURNAL }) {
+                if(!new File(file).exists()) continue;
+                try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        if(!line.isEmpty()) sink.accept(line.split(",", -1));
+                    }
+                } catch (IOException e) { ioError("Journal Replay", e); }
+            }
+        }
+
+        // Folds the journal into the CSVs: the live log is rotated aside under the journal lock
+        // (appends continue into a fresh log), then each CSV is rewritten to a temp file and
+        // atomically moved into place. Records are idempotent, so a crash mid-way just replays.
+        public static void compactJournal() {
+            synchronized(compactLock) {
+                Path rotated = Paths.get(rotatedJournal());
+                try {
+                    synchronized(journalLock) {
+                        compactQueued = false;
+                        if(!Files.exists(rotated)) {
+                            if(journalRecords == 0) return;
+                            closeWriter(FILE_JOURNAL);
+                            Files.move(Paths.get(FILE_JOURNAL), rotated, StandardCopyOption.ATOMIC_MOVE);
+                            createFileIfNotExists(FILE_JOURNAL, null);
+                            journalRecords = 0;
+                        }
+                    }
+
+                    Map<String, List<String>> users = keyedRows(FILE_USERS), flights = keyedRows(FILE_FLIGHTS), bookings = keyedRows(FILE_BOOKINGS);
+                    try (BufferedReader br = Files.newBufferedReader(rotated)) {
+                        String line;
+                        while ((line = br.readLine()) != null) fold(line, users, flights, bookings, null);
+                    }
+                    replaceRows(FILE_USERS, users);
+                    replaceRows(FILE_FLIGHTS, flights);
+                    replaceRows(FILE_BOOKINGS, bookings);
+                    Files.delete(rotated);
+                } catch (Exception e) { ioError("Journal Compaction", e); }
+            }
+        }
+
+        // Applies one journal record to rows grouped as keyedRows() returns them. A null map skips its
+        // table; added rows the filter rejects are skipped too (null keeps all).
+        private static void fold(String line, Map<String, List<String>> users, Map<String, List<String>> flights, Map<String, List<String>> bookings,
+                                 java.util.function.Predicate<String> wanted) {
+            int comma = line.indexOf(',');
+            if(comma < 0) return;
+            String payload = line.substring(comma + 1), key = payload.substring(0, Math.max(0, payload.indexOf(',')));
+            if(key.isEmpty()) key = payload;
+            JournalOp op = JournalOp.valueOf(line.substring(0, comma));
+            if(wanted != null && (op == JournalOp.USER_ADD || op == JournalOp.FLIGHT_ADD || op == JournalOp.BOOKING_ADD) && !wanted.test(payload)) return;
+            switch(op) {
+                case USER_ADD: if(users != null) users.put(key, new ArrayList<>(Collections.singletonList(payload))); break;
+                case FLIGHT_ADD: if(flights != null) flights.put(key, new ArrayList<>(Collections.singletonList(payload))); break;
+                case BOOKING_ADD: if(bookings != null) bookings.putIfAbsent(key, new ArrayList<>(Collections.singletonList(payload))); break;
+                case FLIGHT_DELETE: if(flights != null) flights.remove(key); break;
+                case BOOKING_DELETE: if(bookings != null) bookings.remove(key); break;
+                case WALLET_SET:
+                    List<String> rows = users == null ? null : users.get(key);
+                    if(rows == null) break;
+                    String wallet = payload.substring(key.length() + 1);
+                    rows.replaceAll(row -> row.substring(0, row.lastIndexOf(',') + 1) + wallet);
+                    break;
+            }
+        }
+
+        // The wanted rows of one CSV as the next compaction would write them: the file, then the
+        // pending records (an interrupted compaction's, then the live log's) folded in memory.
+        // Waits out a compaction in progress, so the file and the logs are one version. The filter
+        // must give the same answer for every version of a row's key, as a key or range match does.
+        static List<String> foldedRows(String file, java.util.function.Predicate<String> wanted) {
+            Map<String, List<String>> rows = new LinkedHashMap<>();
+            Map<String, List<String>> users = file.equals(FILE_USERS) ? rows : null, flights = file.equals(FILE_FLIGHTS) ? rows : null, bookings = file.equals(FILE_BOOKINGS) ? rows : null;
+            synchronized(compactLock) {
+                try {
+                    try (BufferedReader br = Files.newBufferedReader(Paths.get(file))) {
+                        String line = br.readLine(); // header
+                        while ((line = br.readLine()) != null) {
+                            if(wanted.test(line)) rows.computeIfAbsent(line.substring(0, Math.max(0, line.indexOf(','))), k -> new ArrayList<>()).add(line);
+                        }
+                    } catch (NoSuchFileException e) { }
+                    Path rotated = Paths.get(rotatedJournal());
+                    if(Files.exists(rotated)) {
+                        try (BufferedReader br = Files.newBufferedReader(rotated)) {
+                            String line;
+                            while ((line = br.readLine()) != null) fold(line, users, flights, bookings, wanted);
+                        }
+                    }
+                    synchronized(journalLock) { // appends wait, so only whole records are read
+                        flushWriter(FILE_JOURNAL);
+                        try (BufferedReader br = Files.newBufferedReader(Paths.get(FILE_JOURNAL))) {
+                            String line;
+                            while ((line = br.readLine()) != null) fold(line, users, flights, bookings, wanted);
+                        } catch (NoSuchFileException e) { }
+                    }
+                } catch (IOException | IllegalArgumentException e) { ioError("Journal Read", e); }
+            }
+            List<String> out = new ArrayList<>(rows.size());
+            for(List<String> group : rows.values()) out.addAll(group);
+            return out;
+        }
+
+        // CSV rows grouped by their key column (header kept under ""), in file order
+        private static Map<String, List<String>> keyedRows(String file) throws IOException {
+            Map<String, List<String>> rows = new LinkedHashMap<>();
+            List<String> lines = readAllLines(file);
+            for(int i=0; i<lines.size(); i++) {
+                String line = lines.get(i);
+                String key = i == 0 ? "" : line.split(",", 2)[0];
+                rows.computeIfAbsent(key, k -> new ArrayList<>()).add(line);
+            }
+            return rows;
+        }
+
+        private static void replaceRows(String file, Map<String, List<String>> rows) throws IOException {
+            closeWriter(file);
+            Path target = Paths.get(file), tmp = Paths.get(file + ".tmp");
+            try (BufferedWriter bw = Files.newBufferedWriter(tmp)) {
+                for(List<String> group : rows.values()) {
+                    for(String row : group) { bw.write(row); bw.newLine(); }
+                }
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Wallet ledger (FILE_LEDGER): every balance change is one line, "KIND,username,amount,balance,ref"
+        // in paise, appended through the writer pool instead of saving the user. Entries are written
+        // under the user's monitor and carry the balance after the change, so the last one for a user
+        // is their balance and replaying any suffix of the ledger is idempotent. Every checkpointEvery
+        // entries the changed balances are saved through the engine in one batch and
+        // FILE_LEDGER_CHECKPOINT records how far the ledger is covered; a start replays only the rest.
+        static class WalletLedger {
+            enum Kind { DEBIT, CREDIT, REFUND }
+
+            static int checkpointEvery = 10_000;
+            private static final Object lock = new Object();
+            private static final Object checkpointLock = new Object();
+            private static Set<User> dirty = new HashSet<>(); // balances changed since the last checkpoint
+            private static int pending = 0;
+            private static boolean checkpointQueued = false;
+            private static ExecutorService checkpointer;
+
+            // Caller holds u's monitor
+            static void append(User u, Kind kind, long amount, String ref) {
+                long t0 = Metrics.start();
+                boolean checkpoint;
+                synchronized(lock) {
+                    appendToCSV(FILE_LEDGER, kind.name() + "," + u.username + "," + amount + "," + u.wallet + "," + ref);
+                    ChangeLog.publish(JournalOp.WALLET_SET, u.username + "," + Money.format(u.wallet));
+                    dirty.add(u);
+                    checkpoint = ++pending >= checkpointEvery && !checkpointQueued;
+                    if(checkpoint) checkpointQueued = true;
+                }
+                if(checkpoint) checkpointer().submit(WalletLedger::checkpoint);
+                Metrics.stop(Metrics.Op.LEDGER_APPEND, t0);
+            }
+
+            private static synchronized ExecutorService checkpointer() {
+                if(checkpointer == null) checkpointer = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "ledger-checkpoint");
+                    t.setDaemon(true);
+                    return t;
+                });
+                return checkpointer;
+            }
+
+            // Saves the balances changed so far, then moves the checkpoint past the entries they include.
+            // A crash before the checkpoint file is replaced only means those entries replay again.
+            static void checkpoint() {
+                synchronized(checkpointLock) {
+                    Set<User> changed;
+                    long covered;
+                    synchronized(lock) {
+                        checkpointQueued = false;
+                        if(dirty.isEmpty()) return;
+                        changed = dirty;
+                        dirty = new HashSet<>();
+                        pending = 0;
+                        flushWriter(FILE_LEDGER);
+                        covered = new File(FILE_LEDGER).length();
+                    }
+                    engine.saveBatch(Collections.<Flight>emptyList(), Collections.<Ticket>emptyList(), changed);
+                    Path target = Paths.get(FILE_LEDGER_CHECKPOINT), tmp = Paths.get(FILE_LEDGER_CHECKPOINT + ".tmp");
+                    try {
+                        Files.write(tmp, Collections.singletonList(String.valueOf(covered)));
+                        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException e) { ioError("Ledger Checkpoint", e); }
+                }
+            }
+
+            // Exit hook: the engine must still be open to take the checkpoint
+            static void close() {
+                checkpoint();
+                closeWriter(FILE_LEDGER);
+            }
+
+            // Brings loaded balances up to date with the entries after the checkpoint. The users they
+            // touch stay dirty, so the next checkpoint moves past them.
+            static void replay(Map<String, User> users) {
+                if(engine.readOnly()) return; // balances come with the change stream
+                synchronized(lock) {
+                    dirty = new HashSet<>();
+                    pending = 0;
+                }
+                closeWriter(FILE_LEDGER);
+                File ledger = new File(FILE_LEDGER);
+                if(!ledger.exists()) return;
+                long from = 0;
+                try {
+                    List<String> lines = Files.readAllLines(Paths.get(FILE_LEDGER_CHECKPOINT));
+                    if(!lines.isEmpty()) from = Long.parseLong(lines.get(0).trim());
+                } catch (NoSuchFileException e) {
+                } catch (IOException | NumberFormatException e) { Metrics.ioError(); }
+                if(from > ledger.length()) from = 0; // the covered entries never reached disk; replay them all
+                try (InputStream in = new FileInputStream(ledger)) {
+                    for(long skipped = 0; skipped < from; ) skipped += in.skip(from - skipped);
+                    BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                    String line;
+                    while((line = br.readLine()) != null) {
+                        String[] d = line.split(",", -1);
+                        if(d.length != 5) continue; // torn last line
+                        User u = users.get(d[1]);
+                        if(u == null) continue;
+                        try { u.wallet = Long.parseLong(d[3]); } catch (NumberFormatException e) { continue; }
+                        synchronized(lock) { dirty.add(u); pending++; }
+                    }
+                } catch (IOException e) { ioError("Ledger Replay", e); }
+            }
+        }
+
+        // Change stream (--publish-changes): every mutation made through this class is also appended to
+        // FILE_CHANGES as "seq,micros,OP,payload", journal ops numbered in the order they were made.
+        // Each start rewrites the file with the whole store as its first records, so a replica
+        // (--replica) builds itself from the stream alone and then follows it. Appends reach the OS
+        // every flushMillis without an fsync: replicas read the page cache, and the engine's files
+        // stay the durable copy.
+        static class ChangeLog {
+            static boolean enabled = false;
+            static int flushMillis = 2;
+            private static final Object lock = new Object();
+            private static volatile Writer out; // null while not publishing
+            private static long seq = 0;
+            private static boolean dirty = false;
+            private static ScheduledExecutorService flusher;
+
+            // Writes the current store as the base of a new stream and moves it over the old one,
+            // which replicas see as a different file and rebuild from
+            static void start() {
+                Path target = Paths.get(FILE_CHANGES), tmp = Paths.get(FILE_CHANGES + ".tmp");
+                synchronized(lock) {
+                    close();
+                    seq = 0;
+                    long now = micros();
+                    Writer w = null;
+                    try {
+                        w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp.toFile()), StandardCharsets.UTF_8), writeBufferBytes);
+                        for(User u : DataStore.users.values()) write(w, now, JournalOp.USER_ADD, userRow(u));
+                        for(Flight f : DataStore.flights) write(w, now, JournalOp.FLIGHT_ADD, flightRow(f));
+                        for(Ticket t : DataStore.tickets.values()) write(w, now, JournalOp.BOOKING_ADD, bookingRow(t));
+                        w.flush();
+                        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        out = w; // the open stream follows the file to its new name
+                    } catch (IOException e) {
+                        ioError("Change Stream", e);
+                        if(w != null) try { w.close(); } catch (IOException ignored) { }
+                        return;
+                    }
+                }
+                startFlusher();
+            }
+
+            private static synchronized void startFlusher() {
+                if(flusher != null) return;
+                flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "change-stream-flush");
+                    t.setDaemon(true);
+                    return t;
+                });
+                flusher.scheduleAtFixedRate(ChangeLog::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+            }
+
+            static void publish(JournalOp op, String payload) {
+                if(out == null) return;
+                synchronized(lock) {
+                    if(out == null) return;
+                    try { write(out, micros(), op, payload); } catch (IOException e) { ioError("Change Stream", e); }
+                }
+            }
+
+            static void publishBatch(List<Flight> flights, List<Ticket> tickets, Collection<User> wallets) {
+                if(out == null) return;
+                synchronized(lock) {
+                    if(out == null) return;
+                    long now = micros();
+                    try {
+                        for(Flight f : flights) write(out, now, JournalOp.FLIGHT_ADD, flightRow(f));
+                        for(Ticket t : tickets) write(out, now, JournalOp.BOOKING_ADD, bookingRow(t));
+                        for(User u : wallets) write(out, now, JournalOp.WALLET_SET, u.username + "," + Money.format(u.wallet));
+                    } catch (IOException e) { ioError("Change Stream", e); }
+                }
+            }
+
+            static void publishDeletes(Collection<String> pnrs) {
+                if(out == null) return;
+                synchronized(lock) {
+                    if(out == null) return;
+                    long now = micros();
+                    try {
+                        for(String pnr : pnrs) write(out, now, JournalOp.BOOKING_DELETE, pnr);
+                    } catch (IOException e) { ioError("Change Stream", e); }
+                }
+            }
+
+            // Wall clock in microseconds where the JVM has them (9+), so replicas on the box can time their lag
+            static long micros() {
+                java.time.Instant now = java.time.Instant.now();
+                return now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+            }
+
+            // Caller holds lock (or owns w outright, while the base is written)
+            private static void write(Writer w, long micros, JournalOp op, String payload) throws IOException {
+                w.write(Long.toString(++seq));
+                w.write(',');
+                w.write(Long.toString(micros));
+                w.write(',');
+                w.write(op.name());
+                w.write(',');
+                w.write(payload);
+                w.write('\n');
+                dirty = true;
+            }
+
+            private static void flush() {
+                synchronized(lock) {
+                    if(!dirty || out == null) return;
+                    try { out.flush(); } catch (IOException e) { ioError("Change Stream", e); }
+                    dirty = false;
+                }
+            }
+
+            static void close() {
+                synchronized(lock) {
+                    if(out == null) return;
+                    try { out.close(); } catch (IOException e) { ioError("Change Stream", e); }
+                    out = null;
+                    dirty = false;
+                }
+            }
+        }
+
+        // The original backend: one CSV per table, appended through the writer pool. Updates and
+        // deletes rewrite the whole file unless --journal is on, in which case they are journal
+        // records folded in by compaction.
+        static class CsvStorage implements StorageEngine {
+            public void open() {
+                createFileIfNotExists(FILE_USERS, "username,password,name,isAdmin,wallet");
+                createFileIfNotExists(FILE_BOOKINGS, BOOKINGS_HEADER);
+                createFileIfNotExists(FILE_FLIGHTS, "id,origin,destination,time,price,layout,duration");
+                if(journaled) startJournal();
+            }
+
+            // Drains every writer to disk, then folds any pending journal
+            public void close() {
+                for(String file : new ArrayList<>(writers.keySet())) closeWriter(file);
+                if(journaled) compactJournal();
+            }
+
+            public String[] files() { return new String[] { FILE_USERS, FILE_FLIGHTS, FILE_BOOKINGS, FILE_JOURNAL, rotatedJournal() }; }
+
+            // A non-empty journal means the CSVs are just an older snapshot, not a fresh install
+            public boolean isEmpty(Table table) {
+                if(journaled && (new File(FILE_JOURNAL).length() > 0 || new File(rotatedJournal()).length() > 0)) return false;
+                return !hasRows(file(table));
+            }
+
+            public void replay(java.util.function.Consumer<String[]> apply) { if(journaled) replayJournal(apply); }
+
+            public Map<String, User> loadUsers() {
+                Map<String, User> users = new HashMap<>();
+                closeWriter(FILE_USERS);
+                try (CsvReader csv = new CsvReader(FILE_USERS)) {
+                    csv.next(); // Skip header
+                    while (csv.next()) {
+                        if(csv.blank()) continue;
+                        if(csv.fields() < 5) { csv.reject("expected 5 fields, found " + csv.fields()); continue; }
+                        try {
+                            User u = new User(csv.string(0), csv.string(1), csv.intern(2), csv.boolField(3));
+                            u.wallet = csv.moneyField(4);
+                            users.put(u.username, u);
+                        } catch (RuntimeException e) { csv.reject(e.toString()); }
+                    }
+                } catch (IOException e) { Metrics.ioError(); }
+                return users;
+            }
+
+            public List<Flight> loadFlights() {
+                List<Flight> flights = new ArrayList<>();
+                closeWriter(FILE_FLIGHTS);
+                try (CsvReader csv = new CsvReader(FILE_FLIGHTS)) {
+                    csv.next();
+                    while (csv.next()) {
+                        if(csv.blank()) continue;
+                        if(csv.fields() < 5) { csv.reject("expected at least 5 fields, found " + csv.fields()); continue; }
+                        try {
+                            SeatLayout layout = SeatLayout.REGIONAL; // older rows have no layout column
+                            if(csv.fields() >= 6 && !csv.isEmpty(5)) {
+                                layout = csv.enumField(5, SeatLayout.values());
+                                if(layout == null) layout = SeatLayout.parse(csv.string(5));
+                            }
+                            Flight f = new Flight(csv.intern(0), csv.intern(1), csv.intern(2), csv.intern(3), csv.moneyField(4), layout);
+                            if(csv.fields() >= 7 && !csv.isEmpty(6)) f.duration = csv.intField(6);
+                            flights.add(f);
+                        } catch (RuntimeException e) { csv.reject(e.toString()); }
+                    }
+                } catch (IOException e) { Metrics.ioError(); }
+                return flights;
+            }
+
+            // Resolves each row against the flight index and marks its seat; bad rows are reported and skipped
+            public void loadBookings(Map<String, Flight> flights, Map<String, Ticket> tickets) {
+                closeWriter(FILE_BOOKINGS);
+                CabinClass[] cabins = CabinClass.values();
+                MealType[] meals = MealType.values();
+                long today = InventoryStore.today();
+                try (CsvReader csv = new CsvReader(FILE_BOOKINGS)) {
+                    csv.next();
+                    while (csv.next()) {
+                        if(csv.blank()) continue;
+                        if(csv.fields() < 7) { csv.reject("expected at least 7 fields, found " + csv.fields()); continue; }
+                        String pnr = csv.string(0);
+                        if(tickets.containsKey(pnr)) { csv.reject("duplicate PNR " + pnr); continue; }
+                        Flight f = flights.get(csv.intern(1)); // O(1) via DataStore.flightIndex
+                        if(f == null) { csv.reject("unknown flight " + csv.string(1)); continue; }
+                        int seat = csv.seatIndex(2, f.layout);
+                        if(seat < 0) { csv.reject("invalid seat " + csv.string(2) + " for " + f.layout); continue; }
+                        CabinClass cabin = csv.enumField(4, cabins);
+                        MealType meal = csv.enumField(5, meals);
+                        if(cabin == null || meal == null) { csv.reject("unknown class or meal"); continue; }
+                        try {
+                            String username = csv.fields() >= 8 && !csv.isEmpty(7) ? csv.intern(7) : null; // older rows only carry the display name
+                            LocalDate date = InventoryStore.date(csv.fields() >= 9 && !csv.isEmpty(8) ? csv.dayField(8) : today); // undated rows depart today
+                            Ticket t = new Ticket(f, date, f.layout.seatCode(seat), csv.intern(3), username, cabin, meal, csv.moneyField(6), pnr);
+                            if(!InventoryStore.instance(f, date).seats.tryTake(seat)) { csv.reject("seat " + t.seat + " on " + date + " already booked"); continue; }
+                            tickets.put(pnr, t);
+                        } catch (RuntimeException e) { csv.reject(e.toString()); }
+                    }
+                } catch (IOException e) { Metrics.ioError(); }
+            }
+
+            public void saveUser(User u) {
+                if(journaled) journal(JournalOp.USER_ADD, userRow(u));
+                else appendToCSV(FILE_USERS, userRow(u));
+            }
+
+            public void saveFlight(Flight f) {
+                if(journaled) journal(JournalOp.FLIGHT_ADD, flightRow(f));
+                else appendToCSV(FILE_FLIGHTS, flightRow(f));
+            }
+
+            public void saveBooking(Ticket t) {
+                if(journaled) journal(JournalOp.BOOKING_ADD, bookingRow(t));
+                else appendToCSV(FILE_BOOKINGS, bookingRow(t));
+            }
+
+            public void updateUserWallet(User u) {
+                if(journaled) { journal(JournalOp.WALLET_SET, u.username + "," + Money.format(u.wallet)); return; }
+                rewriteUsers(Collections.singletonList(u));
+            }
+
+            // Journaled: one run of records and one sync. Otherwise one append per file and a
+            // single users.csv rewrite, however many wallets the batch touched.
+            public void saveBatch(List<Flight> flights, List<Ticket> tickets, Collection<User> wallets) {
+                if(journaled) {
+                    List<String> records = new ArrayList<>(flights.size() + tickets.size() + wallets.size());
+                    for(Flight f : flights) records.add(JournalOp.FLIGHT_ADD.name() + "," + flightRow(f));
+                    for(Ticket t : tickets) records.add(JournalOp.BOOKING_ADD.name() + "," + bookingRow(t));
+                    for(User u : wallets) records.add(JournalOp.WALLET_SET.name() + "," + u.username + "," + Money.format(u.wallet));
+                    journalAll(records);
+                    return;
+                }
+                List<String> rows = new ArrayList<>(Math.max(flights.size(), tickets.size()));
+                for(Flight f : flights) rows.add(flightRow(f));
+                appendAllToCSV(FILE_FLIGHTS, rows);
+                rows.clear();
+                for(Ticket t : tickets) rows.add(bookingRow(t));
+                appendAllToCSV(FILE_BOOKINGS, rows);
+                if(!wallets.isEmpty()) rewriteUsers(wallets);
+            }
+
+            private void rewriteUsers(Collection<User> changed) {
+                Map<String, User> byName = new HashMap<>();
+                for(User u : changed) byName.put(u.username, u);
+                synchronized(fileLock(FILE_USERS)) {
+                    try {
+                        List<String> lines = readAllLines(FILE_USERS);
+                        for(int i=1; i<lines.size(); i++) {
+                            String line = lines.get(i);
+                            User u = byName.get(line.substring(0, Math.max(0, line.indexOf(','))));
+                            if(u != null) lines.set(i, userRow(u));
+                        }
+                        writeAllLines(FILE_USERS, lines);
+                    } catch (IOException e) { ioError("DB Write", e); }
+                }
+            }
+
+            public void deleteBooking(String pnr) {
+                if(journaled) { journal(JournalOp.BOOKING_DELETE, pnr); return; }
+                synchronized(fileLock(FILE_BOOKINGS)) {
+                    try {
+                        List<String> lines = readAllLines(FILE_BOOKINGS);
+                        lines.removeIf(line -> line.startsWith(pnr + ","));
+                        writeAllLines(FILE_BOOKINGS, lines);
+                    } catch (IOException e) { ioError("DB Write", e); }
+                }
+            }
+
+            public void deleteBookings(Set<String> pnrs) {
+                if(journaled) { for(String pnr : pnrs) journal(JournalOp.BOOKING_DELETE, pnr); return; }
+                synchronized(fileLock(FILE_BOOKINGS)) {
+                    try {
+                        List<String> lines = readAllLines(FILE_BOOKINGS);
+                        lines.removeIf(line -> pnrs.contains(line.substring(0, Math.max(0, line.indexOf(',')))));
+                        writeAllLines(FILE_BOOKINGS, lines);
+                    } catch (IOException e) { ioError("DB Write", e); }
+                }
+            }
+
+            public void deleteFlight(String flightId) {
+                if(journaled) { journal(JournalOp.FLIGHT_DELETE, flightId); return; }
+                synchronized(fileLock(FILE_FLIGHTS)) {
+                    try {
+                        List<String> lines = readAllLines(FILE_FLIGHTS);
+                        lines.removeIf(line -> line.startsWith(flightId + ","));
+                        writeAllLines(FILE_FLIGHTS, lines);
+                    } catch (IOException e) { ioError("DB Write", e); }
+                }
+            }
+
+            // Reads go to the file itself, so they cost a full scan; a pending journal is folded in as it is read
+            public String get(Table table, String key) {
+                String[] found = { null };
+                scan(table, key, key + "\0", row -> found[0] = row);
+                return found[0];
+            }
+
+            public void scan(Table table, String from, String to, java.util.function.Consumer<String> rows) {
+                TreeMap<String, String> sorted = new TreeMap<>();
+                for(String row : rows(table, row -> {
+                    String key = row.substring(0, Math.max(0, row.indexOf(',')));
+                    return (from == null || key.compareTo(from) >= 0) && (to == null || key.compareTo(to) < 0);
+                })) sorted.put(row.substring(0, Math.max(0, row.indexOf(','))), row);
+                sorted.values().forEach(rows);
+            }
+
+            public void scan(Index index, String value, java.util.function.Consumer<String> rows) {
+                int column = index == Index.BOOKINGS_BY_FLIGHT ? 1 : 7; // older rows have no username column
+                rows(Table.BOOKINGS, row -> value.equals(field(row, column))).forEach(rows);
+            }
+
+            // The wanted rows of a table, header excluded
+            private List<String> rows(Table table, java.util.function.Predicate<String> wanted) {
+                String file = file(table);
+                if(journaled) return foldedRows(file, wanted);
+                List<String> lines;
+                synchronized(fileLock(file)) {
+                    try { lines = readAllLines(file); } catch (IOException e) { ioError("DB Read", e); return new ArrayList<>(); }
+                }
+                List<String> out = new ArrayList<>();
+                for(int i=1; i<lines.size(); i++) if(wanted.test(lines.get(i))) out.add(lines.get(i));
+                return out;
+            }
+
+            // The i-th column of a row, or null if it has fewer
+            private static String field(String row, int i) {
+                int from = 0;
+                for(int n=0; n<i; n++) {
+                    from = row.indexOf(',', from) + 1;
+                    if(from == 0) return null;
+                }
+                int to = row.indexOf(',', from);
+                return row.substring(from, to < 0 ? row.length() : to);
+            }
+
+            private static String file(Table table) {
+                switch(table) {
+                    case USERS: return FILE_USERS;
+                    case FLIGHTS: return FILE_FLIGHTS;
+                    default: return FILE_BOOKINGS;
+                }
+            }
+        }
+
+        // Embedded key-value backend (--storage=kv): one append-only log, FILE_STORE, of journal
+        // style records ("BOOKING_ADD,<row>", "BOOKING_DELETE,<pnr>") indexed in memory the way
+        // Bitcask does it. Ordered keydirs map each key to its latest record, secondary indexes
+        // cover bookings by flight and by user, and a wallet update or cancellation is one append.
+        // Superseded records are reclaimed by rewriting the live ones once they are under half the log.
+        // Reads share a read lock. A write holds the write lock only to buffer its record and point the
+        // keydir at it; the sync its policy asks for comes after, so one write's sync never holds up the
+        // others' appends or any read.
+        static class KvStorage implements StorageEngine {
+            private static final long COMPACT_MIN_BYTES = 1 << 20;
+
+            // Where a key's live record sits in the log, plus the columns the secondary indexes use
+            private static final class Loc {
+                final long offset;
+                final int length;
+                final String flight, user;
+                Loc(long offset, int length, String flight, String user) { this.offset = offset; this.length = length; this.flight = flight; this.user = user; }
+            }
+
+            private final Map<Table, TreeMap<String, Loc>> keydir = new EnumMap<>(Table.class);
+            private final Map<String, TreeSet<String>> byFlight = new HashMap<>(), byUser = new HashMap<>(); // value -> PNRs, sharing the keydir's key strings
+            private volatile FileChannel reader;
+            private long tail, garbage; // log size and bytes no longer reachable from the keydir
+            private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+            KvStorage() { for(Table t : Table.values()) keydir.put(t, new TreeMap<>()); }
+
+            public void open() {
+                lock.writeLock().lock();
+                try {
+                    createFileIfNotExists(FILE_STORE, null);
+                    boolean fresh = new File(FILE_STORE).length() == 0;
+                    index();
+                    if(fresh) importCsv();
+                } finally { lock.writeLock().unlock(); }
+            }
+
+            public void close() {
+                lock.writeLock().lock();
+                try {
+                    closeWriter(FILE_STORE);
+                    if(garbage > 0 && garbage > tail / 4) compact();
+                    closeReader();
+                } finally { lock.writeLock().unlock(); }
+            }
+
+            public String[] files() { return new String[] { FILE_STORE }; }
+            public void replay(java.util.function.Consumer<String[]> apply) { } // every write is already in the loaded rows
+
+            public boolean isEmpty(Table table) {
+                lock.readLock().lock();
+                try { return keydir.get(table).isEmpty(); } finally { lock.readLock().unlock(); }
+            }
+
+            public Map<String, User> loadUsers() {
+                Map<String, User> users = new HashMap<>();
+                liveRows(Table.USERS, row -> { User u = parseUser(row); users.put(u.username, u); });
+                return users;
+            }
+
+            public List<Flight> loadFlights() {
+                List<Flight> flights = new ArrayList<>();
+                liveRows(Table.FLIGHTS, row -> flights.add(parseFlight(row)));
+                return flights;
+            }
+
+            public void loadBookings(Map<String, Flight> flights, Map<String, Ticket> tickets) {
+                liveRows(Table.BOOKINGS, row -> { // a thrown row is reported with its line by liveRows
+                    if(tickets.containsKey(row[0])) return;
+                    Ticket t = parseTicket(row, flights);
+                    if(t == null) throw new IllegalArgumentException(flights.containsKey(row[1]) ? "bad seat, date, class, meal or price" : "unknown flight " + row[1]);
+                    if(!takeSeat(t)) throw new IllegalStateException("seat " + t.seat + " on " + t.date + " already booked");
+                    tickets.put(t.bookingId, t);
+                });
+            }
+
+            public void saveUser(User u) { put(Table.USERS, JournalOp.USER_ADD, u.username, userRow(u), null, null); }
+            public void updateUserWallet(User u) { put(Table.USERS, JournalOp.USER_ADD, u.username, userRow(u), null, null); }
+            public void saveFlight(Flight f) { put(Table.FLIGHTS, JournalOp.FLIGHT_ADD, f.id, flightRow(f), null, null); }
+            public void deleteFlight(String flightId) { put(Table.FLIGHTS, JournalOp.FLIGHT_DELETE, flightId, flightId, null, null); }
+            public void saveBooking(Ticket t) { put(Table.BOOKINGS, JournalOp.BOOKING_ADD, t.bookingId, bookingRow(t), t.f.id, t.username); }
+            public void deleteBooking(String pnr) { put(Table.BOOKINGS, JournalOp.BOOKING_DELETE, pnr, pnr, null, null); }
+            public void deleteBookings(Set<String> pnrs) { for(String pnr : pnrs) deleteBooking(pnr); }
+
+            // A batch is committed as a unit: one sync after the last record, under every policy but shutdown
+            public void saveBatch(List<Flight> flights, List<Ticket> tickets, Collection<User> wallets) {
+                List<String> lines = new ArrayList<>(flights.size() + tickets.size() + wallets.size());
+                lock.writeLock().lock();
+                try {
+                    for(Flight f : flights) stage(lines, Table.FLIGHTS, JournalOp.FLIGHT_ADD, f.id, flightRow(f), null, null);
+                    for(Ticket t : tickets) stage(lines, Table.BOOKINGS, JournalOp.BOOKING_ADD, t.bookingId, bookingRow(t), t.f.id, t.username);
+                    for(User u : wallets) stage(lines, Table.USERS, JournalOp.USER_ADD, u.username, userRow(u), null, null);
+                    bufferToCSV(FILE_STORE, lines);
+                    if(garbage > COMPACT_MIN_BYTES && garbage > tail / 2) compact();
+                } finally { lock.writeLock().unlock(); }
+                if(syncPolicy != SyncPolicy.ON_SHUTDOWN) syncWriter(FILE_STORE);
+            }
+
+            // Indexes a record at the tail ahead of the batch append that writes it
+            private void stage(List<String> lines, Table table, JournalOp op, String key, String payload, String flight, String user) {
+                String line = op.name() + "," + payload;
+                int length = utf8Length(line);
+                lines.add(line);
+                link(table, key, new Loc(tail, length, flight, user));
+                tail += length + 1;
+            }
+
+            public String get(Table table, String key) {
+                lock.readLock().lock();
+                try {
+                    Loc loc = keydir.get(table).get(key);
+                    return loc == null ? null : read(loc);
+                } finally { lock.readLock().unlock(); }
+            }
+
+            public void scan(Table table, String from, String to, java.util.function.Consumer<String> rows) {
+                lock.readLock().lock();
+                try {
+                    NavigableMap<String, Loc> range = keydir.get(table);
+                    if(from != null) range = range.tailMap(from, true);
+                    if(to != null) range = range.headMap(to, false);
+                    for(Loc loc : range.values()) rows.accept(read(loc));
+                } finally { lock.readLock().unlock(); }
+            }
+
+            public void scan(Index index, String value, java.util.function.Consumer<String> rows) {
+                lock.readLock().lock();
+                try {
+                    TreeSet<String> pnrs = (index == Index.BOOKINGS_BY_FLIGHT ? byFlight : byUser).get(value);
+                    if(pnrs == null) return;
+                    for(String pnr : pnrs) rows.accept(read(keydir.get(Table.BOOKINGS).get(pnr)));
+                } finally { lock.readLock().unlock(); }
+            }
+
+            // Buffers the record and points the keydir at it (or drops the key for a delete), then syncs
+            private void put(Table table, JournalOp op, String key, String payload, String flight, String user) {
+                String line = op.name() + "," + payload;
+                lock.writeLock().lock();
+                try {
+                    bufferToCSV(FILE_STORE, Collections.singletonList(line));
+                    int length = utf8Length(line);
+                    long at = tail;
+                    tail += length + 1;
+                    if(op == JournalOp.FLIGHT_DELETE || op == JournalOp.BOOKING_DELETE) {
+                        unlink(table, key);
+                        garbage += length + 1;
+                    } else link(table, key, new Loc(at, length, flight, user));
+                    if(garbage > COMPACT_MIN_BYTES && garbage > tail / 2) compact();
+                } finally { lock.writeLock().unlock(); }
+                if(syncPolicy == SyncPolicy.PER_WRITE) syncWriter(FILE_STORE);
+            }
+
+            private void link(Table table, String key, Loc loc) {
+                retire(key, keydir.get(table).put(key, loc));
+                if(loc.flight != null) byFlight.computeIfAbsent(loc.flight, k -> new TreeSet<>()).add(key);
+                if(loc.user != null) byUser.computeIfAbsent(loc.user, k -> new TreeSet<>()).add(key);
+            }
+
+            private void unlink(Table table, String key) { retire(key, keydir.get(table).remove(key)); }
+
+            // Counts a superseded record as garbage and drops it from the secondary indexes
+            private void retire(String key, Loc old) {
+                if(old == null) return;
+                garbage += old.length + 1;
+                if(old.flight != null) unindex(byFlight, old.flight, key);
+                if(old.user != null) unindex(byUser, old.user, key);
+            }
+
+            private static void unindex(Map<String, TreeSet<String>> index, String value, String key) {
+                TreeSet<String> keys = index.get(value);
+                if(keys != null && keys.remove(key) && keys.isEmpty()) index.remove(value);
+            }
+
+            private static Table table(JournalOp op) {
+                switch(op) {
+                    case USER_ADD: return Table.USERS;
+                    case FLIGHT_ADD: case FLIGHT_DELETE: return Table.FLIGHTS;
+                    case BOOKING_ADD: case BOOKING_DELETE: return Table.BOOKINGS;
+                    default: return null;
+                }
+            }
+
+            // Rebuilds the keydir from the log. A torn final append (no newline) is cut off.
+            private void index() {
+                closeWriter(FILE_STORE);
+                for(TreeMap<String, Loc> m : keydir.values()) m.clear();
+                byFlight.clear();
+                byUser.clear();
+                tail = garbage = 0;
+                JournalOp[] ops = JournalOp.values();
+                try (CsvReader log = new CsvReader(FILE_STORE)) {
+                    while(log.next()) {
+                        if(!log.terminated()) break;
+                        long at = tail;
+                        tail = log.end();
+                        JournalOp op = log.blank() ? null : log.enumField(0, ops);
+                        Table table = op == null ? null : table(op);
+                        if(table == null || log.fields() < 2) {
+                            if(!log.blank()) log.reject("unknown record");
+                            garbage += tail - at;
+                            continue;
+                        }
+                        String key = log.string(1);
+                        if(op == JournalOp.FLIGHT_DELETE || op == JournalOp.BOOKING_DELETE) {
+                            unlink(table, key);
+                            garbage += tail - at;
+                        } else {
+                            String flight = table == Table.BOOKINGS && log.fields() > 2 ? log.intern(2) : null;
+                            String user = table == Table.BOOKINGS && log.fields() > 8 && !log.isEmpty(8) ? log.intern(8) : null;
+                            link(table, key, new Loc(at, (int) (tail - at - 1), flight, user));
+                        }
+                    }
+                } catch (IOException e) { ioError("DB Index", e); }
+                try (FileChannel ch = FileChannel.open(Paths.get(FILE_STORE), StandardOpenOption.WRITE)) {
+                    if(ch.size() > tail) ch.truncate(tail);
+                } catch (IOException e) { ioError("DB Index", e); }
+            }
+
+            // First start on the kv backend: carries over whatever the CSV files hold
+            private void importCsv() {
+                CsvStorage csv = new CsvStorage();
+                Map<String, User> users = csv.loadUsers();
+                List<Flight> flights = csv.loadFlights();
+                Map<String, Flight> byId = new HashMap<>();
+                for(Flight f : flights) byId.put(f.id, f);
+                Map<String, Ticket> tickets = new LinkedHashMap<>();
+                csv.loadBookings(byId, tickets);
+                for(User u : users.values()) saveUser(u);
+                for(Flight f : flights) saveFlight(f);
+                for(Ticket t : tickets.values()) saveBooking(t);
+            }
+
+            // One sequential pass over the log, handing over the rows the keydir still points at
+            private void liveRows(Table table, java.util.function.Consumer<String[]> rows) {
+                lock.writeLock().lock();
+                try {
+                    closeWriter(FILE_STORE);
+                    TreeMap<String, Loc> live = keydir.get(table);
+                    try (CsvReader log = new CsvReader(FILE_STORE)) {
+                        while(log.next()) {
+                            if(log.blank() || log.fields() < 2) continue;
+                            Loc loc = live.get(log.string(1));
+                            if(loc == null || loc.offset != log.offset()) continue;
+                            String line = log.text();
+                            try { rows.accept(line.substring(line.indexOf(',') + 1).split(",", -1)); }
+                            catch (RuntimeException e) { log.reject(e.toString()); }
+                        }
+                    } catch (IOException e) { ioError("DB Read", e); }
+                } finally { lock.writeLock().unlock(); }
+            }
+
+            // Positional read of one record, minus its op prefix. Positional reads on one channel
+            // are safe across threads, so readers share it.
+            private String read(Loc loc) {
+                flushWriter(FILE_STORE);
+                try {
+                    FileChannel ch = reader();
+                    ByteBuffer b = ByteBuffer.allocate(loc.length);
+                    while(b.hasRemaining() && ch.read(b, loc.offset + b.position()) >= 0) { }
+                    String line = new String(b.array(), 0, b.position(), StandardCharsets.UTF_8);
+                    return line.substring(line.indexOf(',') + 1);
+                } catch (IOException e) {
+                    ioError("DB Read", e);
+                    return null;
+                }
+            }
+
+            private FileChannel reader() throws IOException {
+                FileChannel ch = reader;
+                if(ch != null) return ch;
+                synchronized(this) {
+                    if(reader == null) reader = FileChannel.open(Paths.get(FILE_STORE), StandardOpenOption.READ);
+                    return reader;
+                }
+            }
+
+            private synchronized void closeReader() {
+                if(reader == null) return;
+                try { reader.close(); } catch (IOException e) { }
+                reader = null;
+            }
+
+            // Copies the live records to a temp log, swaps it in atomically and re-indexes
+            private void compact() {
+                closeWriter(FILE_STORE);
+                closeReader();
+                Path log = Paths.get(FILE_STORE), tmp = Paths.get(FILE_STORE + ".tmp");
+                try {
+                    try (CsvReader in = new CsvReader(FILE_STORE); Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                        JournalOp[] ops = JournalOp.values();
+                        while(in.next()) {
+                            if(!in.terminated() || in.blank() || in.fields() < 2) continue;
+                            JournalOp op = in.enumField(0, ops);
+                            Table table = op == null ? null : table(op);
+                            Loc loc = table == null ? null : keydir.get(table).get(in.string(1));
+                            if(loc == null || loc.offset != in.offset()) continue;
+                            out.write(in.text());
+                            out.write('\n');
+                        }
+                    }
+                    Files.move(tmp, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) { ioError("DB Compaction", e); }
+                index();
+            }
+        }
+
+        // Backend of a --replica node: it owns no files. The loads come back empty and replay is the
+        // primary's change stream from its start (see Replica), so refreshData rebuilds the store
+        // from the stream alone. Sessions refuse writes before they get this far.
+        static class ReplicaStorage implements StorageEngine {
+            public void open() { }
+            public void close() { }
+            public String[] files() { return new String[0]; }
+            public boolean isEmpty(Table table) { return false; }
+            public boolean readOnly() { return true; }
+
+            public Map<String, User> loadUsers() { return new HashMap<>(); }
+            public List<Flight> loadFlights() { return new ArrayList<>(); }
+            public void loadBookings(Map<String, Flight> flights, Map<String, Ticket> tickets) { }
+            public void replay(java.util.function.Consumer<String[]> apply) { Replica.load(apply); }
+
+            public void saveUser(User u) { throw unsupported(); }
+            public void updateUserWallet(User u) { throw unsupported(); }
+            public void saveFlight(Flight f) { throw unsupported(); }
+            public void deleteFlight(String flightId) { throw unsupported(); }
+            public void saveBooking(Ticket t) { throw unsupported(); }
+            public void deleteBooking(String pnr) { throw unsupported(); }
+            public void deleteBookings(Set<String> pnrs) { throw unsupported(); }
+            public void saveBatch(List<Flight> flights, List<Ticket> tickets, Collection<User> wallets) { throw unsupported(); }
+
+            public String get(Table table, String key) { throw unsupported(); }
+            public void scan(Table table, String from, String to, java.util.function.Consumer<String> rows) { throw unsupported(); }
+            public void scan(Index index, String value, java.util.function.Consumer<String> rows) { throw unsupported(); }
+
+            private static UnsupportedOperationException unsupported() { return new UnsupportedOperationException("a replica has no storage of its own"); }
+        }
+    }
+
+    // Persistence backend behind DatabaseManager, chosen at startup with --storage=csv|kv. Rows are
+    // the CSV payloads of userRow/flightRow/bookingRow and keys are their first column.
+    interface StorageEngine {
+        enum Table { USERS, FLIGHTS, BOOKINGS }
+        enum Index { BOOKINGS_BY_FLIGHT, BOOKINGS_BY_USER }
+
+        void open();
+        void close();
+        String[] files(); // everything it persists to, for snapshot staleness checks
+        boolean isEmpty(Table table);
+
+        Map<String, User> loadUsers();
+        List<Flight> loadFlights();
+        void loadBookings(Map<String, Flight> flights, Map<String, Ticket> tickets);
+        void replay(java.util.function.Consumer<String[]> apply); // changes not yet reflected by the loads
+
+        void saveUser(User u);
+        void updateUserWallet(User u);
+        void saveFlight(Flight f);
+        void deleteFlight(String flightId);
+        void saveBooking(Ticket t);
+        void deleteBooking(String pnr);
+        void deleteBookings(Set<String> pnrs);
+        void saveBatch(List<Flight> flights, List<Ticket> tickets, Collection<User> wallets); // one commit for the lot
+
+        String get(Table table, String key); // the row, or null
+        void scan(Table table, String fromKey, String toKey, java.util.function.Consumer<String> rows); // keys in [from, to) in order; null is open
+        void scan(Index index, String value, java.util.function.Consumer<String> rows);
+
+        default boolean readOnly() { return false; } // nothing may be written to the data directory
+    }
+
+    // Streaming CSV reader over a FileChannel. Each row is tokenized in place in a reusable byte
+    // buffer; numbers, booleans, enums and seat codes are parsed straight from the bytes and
+    // repeated values (airport codes, flight ids, names) come from an intern pool, so a row only
+    // allocates the strings it keeps. The pool belongs to the reader and goes with it, so it never
+    // outlives one file's load. Handles the unquoted rows this app writes, not general CSV.
+    static class CsvReader implements Closeable {
+        private static final int MAX_FIELDS = 16, REPORT_LIMIT = 10;
+        private final Interner pool = new Interner();
+
+        private final String name;
+        private final FileChannel ch;
+        private ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        private int lineStart, lineEnd, next, line, fields, rejected;
+        private long base; // file offset of buf[0]
+        private boolean eof, terminated;
+        private final int[] start = new int[MAX_FIELDS], end = new int[MAX_FIELDS];
+
+        CsvReader(String file) throws IOException {
+            name = Paths.get(file).getFileName().toString();
+            ch = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+            buf.limit(0);
+        }
+
+        // Advances to the next line; false at end of file
+        boolean next() throws IOException {
+            int from = next;
+            while(true) {
+                byte[] a = buf.array();
+                int nl = -1;
+                for(int i = from; i < buf.limit(); i++) if(a[i] == '\n') { nl = i; break; }
+                if(nl >= 0 || (eof && next < buf.limit())) {
+                    lineStart = next;
+                    lineEnd = nl >= 0 ? nl : buf.limit();
+                    terminated = nl >= 0;
+                    next = lineEnd + 1;
+                    if(lineEnd > lineStart && a[lineEnd - 1] == '\r') lineEnd--;
+                    line++;
+                    tokenize(a);
+                    return true;
+                }
+                if(eof) return false;
+                from = buf.limit() - next; // already scanned, and about to move to the front
+                fill();
+            }
+        }
+
+        private void fill() throws IOException {
+            int remaining = buf.limit() - next;
+            if(next == 0 && buf.limit() == buf.capacity()) { // a single line fills the buffer
+                ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+                bigger.put(buf.array(), 0, remaining);
+                buf = bigger;
+            } else {
+                System.arraycopy(buf.array(), next, buf.array(), 0, remaining);
+                buf.clear();
+                buf.position(remaining);
+            }
+            base += next;
+            next = 0;
+            if(ch.read(buf) < 0) eof = true;
+            buf.flip();
+        }
+
+        private void tokenize(byte[] a) {
+            fields = 0;
+            int s = lineStart;
+            for(int i = lineStart; i < lineEnd; i++) {
+                if(a[i] == ',') { field(s, i); s = i + 1; }
+            }
+            field(s, lineEnd);
+        }
+
+        private void field(int s, int e) {
+            if(fields == MAX_FIELDS) return;
+            start[fields] = s; end[fields] = e; fields++;
+        }
+
+        int line() { return line; }
+        long offset() { return base + lineStart; }
+        long end() { return base + Math.min(next, buf.limit()); } // just past the newline
+        boolean terminated() { return terminated; } // false only for a final line with no newline
+        String text() { return new String(buf.array(), lineStart, lineEnd - lineStart, StandardCharsets.UTF_8); }
+        int fields() { return fields; }
+        boolean blank() { return lineEnd == lineStart; }
+        boolean isEmpty(int i) { return end[i] == start[i]; }
+
+        String string(int i) { return new String(buf.array(), start[i], end[i] - start[i], StandardCharsets.UTF_8); }
+        String intern(int i) { return pool.intern(buf.array(), start[i], end[i]); }
+
+        int intField(int i) {
+            long v = parseLong(i, start[i], end[i]);
+            if(v != (int) v) throw new NumberFormatException("out of range: " + string(i));
+            return (int) v;
+        }
+
+        // An ISO date ("2026-03-14") as an epoch day
+        long dayField(int i) {
+            int s = start[i];
+            if(end[i] - s != 10 || buf.array()[s + 4] != '-' || buf.array()[s + 7] != '-') throw new IllegalArgumentException("not a date: " + string(i));
+            return LocalDate.of((int) parseLong(i, s, s + 4), (int) parseLong(i, s + 5, s + 7), (int) parseLong(i, s + 8, s + 10)).toEpochDay();
+        }
+
+        private long parseLong(int i, int s, int e) {
+            byte[] a = buf.array();
+            boolean neg = s < e && a[s] == '-';
+            if(neg || (s < e && a[s] == '+')) s++;
+            if(s == e || e - s > 18) throw new NumberFormatException("not a number: " + string(i));
+            long v = 0;
+            for(int p = s; p < e; p++) {
+                int d = a[p] - '0';
+                if(d < 0 || d > 9) throw new NumberFormatException("not a number: " + string(i));
+                v = v * 10 + d;
+            }
+            return neg ? -v : v;
+        }
+
+        // Rupees to paise straight from the bytes for plain amounts ("4800", "4800.5", "4800.00");
+        // anything longer or odder goes through Money.parse
+        long moneyField(int i) {
+            byte[] a = buf.array();
+            int s = start[i], e = end[i], p = s;
+            if(p < e && (a[p] == '-' || a[p] == '+')) p++;
+            long whole = 0, frac = 0;
+            int digits = 0, scale = -1;
+            for(; p < e; p++) {
+                byte c = a[p];
+                if(c == '.' && scale < 0) { scale = 0; continue; }
+                if(c < '0' || c > '9' || digits >= 15 || scale >= 2) return Money.parse(string(i));
+                if(scale < 0) { whole = whole * 10 + (c - '0'); digits++; }
+                else { frac = frac * 10 + (c - '0'); scale++; }
+            }
+            if(digits == 0) return Money.parse(string(i)); // let it throw
+            long v = whole * 100 + (scale == 1 ? frac * 10 : frac);
+            return a[s] == '-' ? -v : v;
+        }
+
+        boolean boolField(int i) { return equalsIgnoreCase(i, "true"); } // as Boolean.parseBoolean
+
+        // Exact name match, as Enum.valueOf; null if none
+        <E extends Enum<E>> E enumField(int i, E[] values) {
+            for(E v : values) if(matches(i, v.name())) return v;
+            return null;
+        }
+
+        // "12C" -> row-major index on the layout, or -1, as SeatLayout.seatIndex
+        int seatIndex(int i, SeatLayout layout) {
+            byte[] a = buf.array();
+            int s = start[i], e = end[i], r = 0;
+            if(e - s < 2) return -1;
+            for(int p = s; p < e - 1; p++) {
+                int d = a[p] - '0';
+                if(d < 0 || d > 9 || r > layout.rows) return -1;
+                r = r * 10 + d;
+            }
+            int c = layout.letters.indexOf(a[e - 1]);
+            if(c < 0 || r < 1 || r > layout.rows) return -1;
+            return (r - 1) * layout.seatsPerRow + c;
+        }
+
+        private boolean matches(int i, String s) {
+            if(end[i] - start[i] != s.length()) return false;
+            byte[] a = buf.array();
+            for(int p = 0; p < s.length(); p++) if(a[start[i] + p] != s.charAt(p)) return false;
+            return true;
+        }
+
+        private boolean equalsIgnoreCase(int i, String s) {
+            if(end[i] - start[i] != s.length()) return false;
+            byte[] a = buf.array();
+            for(int p = 0; p < s.length(); p++) if(Character.toLowerCase((char) a[start[i] + p]) != s.charAt(p)) return false;
+            return true;
+        }
+
+        // Reports a skipped row with its line number; only the first few per file are printed
+        void reject(String reason) {
+            if(++rejected <= REPORT_LIMIT) System.out.println(RED + "DB Warning: " + name + " line " + line + " skipped: " + reason + RESET);
+        }
+
+        int rejected() { return rejected; }
+
+        @Override public void close() throws IOException {
+            if(rejected > REPORT_LIMIT) System.out.println(RED + "DB Warning: " + name + ": " + (rejected - REPORT_LIMIT) + " more corrupt lines skipped" + RESET);
+            ch.close();
+        }
+
+        // Open-addressed pool of canonical strings, probed with the raw bytes so a hit allocates nothing
+        static final class Interner {
+            private String[] values = new String[1024];
+            private byte[][] keys = new byte[1024][];
+            private int[] hashes = new int[1024];
+            private int size;
+
+            String intern(byte[] a, int from, int to) {
+                int h = 1;
+                for(int p = from; p < to; p++) h = 31 * h + a[p];
+                int mask = values.length - 1;
+                for(int slot = (h ^ (h >>> 16)) & mask; ; slot = (slot + 1) & mask) {
+                    byte[] k = keys[slot];
+                    if(k == null) {
+                        keys[slot] = Arrays.copyOfRange(a, from, to);
+                        hashes[slot] = h;
+                        String v = values[slot] = new String(a, from, to - from, StandardCharsets.UTF_8);
+                        if(++size * 2 > values.length) grow();
+                        return v;
+                    }
+                    if(hashes[slot] == h && k.length == to - from && same(k, a, from)) return values[slot];
+                }
+            }
+
+            private static boolean same(byte[] k, byte[] a, int from) {
+                for(int p = 0; p < k.length; p++) if(k[p] != a[from + p]) return false;
+                return true;
+            }
+
+            private void grow() {
+                String[] oldValues = values;
+                byte[][] oldKeys = keys;
+                int[] oldHashes = hashes;
+                values = new String[oldValues.length * 2];
+                keys = new byte[values.length][];
+                hashes = new int[values.length];
+                int mask = values.length - 1;
+                for(int i = 0; i < oldKeys.length; i++) {
+                    if(oldKeys[i] == null) continue;
+                    int slot = (oldHashes[i] ^ (oldHashes[i] >>> 16)) & mask;
+                    while(keys[slot] != null) slot = (slot + 1) & mask;
+                    keys[slot] = oldKeys[i]; values[slot] = oldValues[i]; hashes[slot] = oldHashes[i];
+                }
+            }
+        }
+    }
+
+    // Binary image of the store for fast cold starts. Layout (big-endian):
+    //   magic, version, source stamps (size + mtime of each data file the engine keeps),
+    //   string dictionary (airport codes, passenger names, usernames), users,
+    //   flights (dictionary codes, fare, layout ordinal), booked seats per departure
+    //   (flight ordinal, epoch day, packed seat bitmap), tickets (flight ordinal, epoch day,
+    //   seat index, dictionary owner, enum ordinals, fare).
+    // Strings are a u16 length plus UTF-8 bytes. A snapshot whose stamps no longer match the
+    // files on disk is stale and ignored, so the CSVs stay the source of truth.
+    static class Snapshot {
+        private static final int MAGIC = 0x534B5953; // "SKYS"
+        private static final int VERSION = 3;
+
+        static class Image {
+            final Map<String, User> users;
+            final List<Flight> flights;
+            final Map<String, Ticket> tickets;
+            Image(Map<String, User> users, List<Flight> flights, Map<String, Ticket> tickets) { this.users = users; this.flights = flights; this.tickets = tickets; }
+        }
+
+        private static long[] stamps() {
+            String[] files = DatabaseManager.snapshotSources();
+            long[] stamps = new long[files.length * 2];
+            for(int i=0; i<files.length; i++) {
+                File f = new File(files[i]);
+                stamps[2*i] = f.exists() ? f.length() : -1;
+                stamps[2*i+1] = f.lastModified();
+            }
+            return stamps;
+        }
+
+        // Writes the current DataStore; tickets on flights that no longer exist are left out,
+        // as the CSV loader would drop them
+        static void write(String file) {
+            Map<String, Integer> dict = new LinkedHashMap<>(), flightNo = new HashMap<>();
+            List<Flight> flights = new ArrayList<>(DataStore.flights);
+            for(int i=0; i<flights.size(); i++) {
+                Flight f = flights.get(i);
+                flightNo.put(f.id, i);
+                dict.putIfAbsent(f.org, dict.size());
+                dict.putIfAbsent(f.dst, dict.size());
+            }
+            Map<FlightInstance, long[]> seatBits = new LinkedHashMap<>(); // booked seats only, not holds
+            List<Ticket> tickets = new ArrayList<>();
+            for(Ticket t : DataStore.tickets.values()) {
+                Integer fi = flightNo.get(t.f.id);
+                int seat = t.f.layout.seatIndex(t.seat);
+                if(fi == null || flights.get(fi) != t.f || seat < 0) continue;
+                seatBits.computeIfAbsent(InventoryStore.instance(t.f, t.date), k -> new long[(k.f.layout.capacity() + 63) >>> 6])[seat >>> 6] |= 1L << seat;
+                dict.putIfAbsent(t.owner, dict.size());
+                dict.putIfAbsent(t.username, dict.size());
+                tickets.add(t);
+            }
+
+            Path target = Paths.get(file), tmp = Paths.get(file + ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    long[] stamps = stamps();
+                    out.writeInt(stamps.length);
+                    for(long v : stamps) out.writeLong(v);
+
+                    out.writeInt(dict.size());
+                    for(String k : dict.keySet()) writeString(out, k);
+
+                    Collection<User> users = DataStore.users.values();
+                    out.writeInt(users.size());
+                    for(User u : users) {
+                        writeString(out, u.username); writeString(out, u.pass); writeString(out, u.name);
+                        out.writeBoolean(u.isAdmin);
+                        out.writeLong(u.wallet);
+                    }
+
+                    out.writeInt(flights.size());
+                    for(int i=0; i<flights.size(); i++) {
+                        Flight f = flights.get(i);
+                        writeString(out, f.id);
+                        out.writeInt(dict.get(f.org)); out.writeInt(dict.get(f.dst));
+                        writeString(out, f.time);
+                        out.writeLong(f.price);
+                        out.writeByte(f.layout.ordinal());
+                        out.writeInt(f.duration);
+                    }
+
+                    out.writeInt(seatBits.size());
+                    for(Map.Entry<FlightInstance, long[]> e : seatBits.entrySet()) {
+                        out.writeInt(flightNo.get(e.getKey().f.id));
+                        out.writeInt((int) e.getKey().date.toEpochDay());
+                        for(long w : e.getValue()) out.writeLong(w);
+                    }
+
+                    out.writeInt(tickets.size());
+                    for(Ticket t : tickets) {
+                        writeString(out, t.bookingId);
+                        out.writeInt(flightNo.get(t.f.id));
+                        out.writeInt((int) t.date.toEpochDay());
+                        out.writeShort(t.f.layout.seatIndex(t.seat));
+                        out.writeInt(dict.get(t.owner)); out.writeInt(dict.get(t.username));
+                        out.writeByte(t.travelClass.ordinal()); out.writeByte(t.meal.ordinal());
+                        out.writeLong(t.paidPrice);
+                    }
+                }
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) { DatabaseManager.ioError("Snapshot", e); }
+        }
+
+        // Maps the snapshot and rebuilds the store from it; null if it is missing, stale or unreadable
+        static Image read(String file) {
+            Path path = Paths.get(file);
+            if(!Files.exists(path)) return null;
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if(b.getInt() != MAGIC || b.getInt() != VERSION) return null;
+                long[] stamps = stamps();
+                if(b.getInt() != stamps.length) return null;
+                for(long v : stamps) if(b.getLong() != v) return null;
+
+                String[] dict = new String[b.getInt()];
+                for(int i=0; i<dict.length; i++) dict[i] = readString(b);
+
+                int nUsers = b.getInt();
+                Map<String, User> users = new HashMap<>(nUsers * 2);
+                for(int i=0; i<nUsers; i++) {
+                    User u = new User(readString(b), readString(b), readString(b), b.get() != 0);
+                    u.wallet = b.getLong();
+                    users.put(u.username, u);
+                }
+
+                SeatLayout[] layouts = SeatLayout.values();
+                Flight[] flights = new Flight[b.getInt()];
+                for(int i=0; i<flights.length; i++) {
+                    String id = readString(b), org = dict[b.getInt()], dst = dict[b.getInt()], time = readString(b);
+                    long price = b.getLong();
+                    Flight f = new Flight(id, org, dst, time, price, layouts[b.get()]);
+                    f.duration = b.getInt();
+                    flights[i] = f;
+                }
+
+                int nInstances = b.getInt();
+                for(int i=0; i<nInstances; i++) {
+                    Flight f = flights[b.getInt()];
+                    long[] words = new long[(f.layout.capacity() + 63) >>> 6];
+                    LocalDate date = InventoryStore.date(b.getInt());
+                    for(int w=0; w<words.length; w++) words[w] = b.getLong();
+                    InventoryStore.instance(f, date).seats.load(words);
+                }
+
+                CabinClass[] cabins = CabinClass.values();
+                MealType[] meals = MealType.values();
+                int nTickets = b.getInt();
+                Map<String, Ticket> tickets = new ConcurrentHashMap<>(nTickets * 2);
+                for(int i=0; i<nTickets; i++) {
+                    String pnr = readString(b);
+                    Flight f = flights[b.getInt()];
+                    LocalDate date = InventoryStore.date(b.getInt());
+                    String seat = f.layout.seatCode(b.getShort());
+                    String owner = dict[b.getInt()], username = dict[b.getInt()];
+                    CabinClass cc = cabins[b.get()];
+                    MealType m = meals[b.get()];
+                    tickets.put(pnr, new Ticket(f, date, seat, owner, username, cc, m, b.getLong(), pnr));
+                }
+                return new Image(users, new ArrayList<>(Arrays.asList(flights)), tickets);
+            } catch (IOException | RuntimeException e) { return null; }
+        }
+
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(ByteBuffer b) {
+            byte[] bytes = new byte[b.getShort() & 0xFFFF];
+            b.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    static class DataStore {
+        // Safe for many concurrent sessions: concurrent maps, lock-free seat bitsets (SeatMap)
+        // and per-user wallet monitors. Nothing here takes a store-wide lock.
+        static List<Flight> flights = new CopyOnWriteArrayList<>();
+        static Map<String, Flight> flightIndex = new ConcurrentHashMap<>(); // id -> flight, kept in sync with flights
+        static RouteIndex routes = new RouteIndex();
+        static final AtomicLong scheduleVersion = new AtomicLong(); // bumped on any flight change; invalidates derived caches
+        static Map<String, Ticket> tickets = new ConcurrentHashMap<>(); // pnr -> ticket
+        static Map<String, Set<Ticket>> ticketsByUser = new ConcurrentHashMap<>(); // username -> tickets, kept in sync with tickets
+        static Map<String, String> usernamesByName = new ConcurrentHashMap<>(); // display name -> username, for legacy booking rows
+        static Map<String, User> users = new ConcurrentHashMap<>();
+        static User currentUser = null;
+        static volatile boolean populated = false; // a snapshot is only worth writing once the store holds real data
+
+        public static void refreshData() {
+            InventoryStore.reset();
+            Snapshot.Image image = DatabaseManager.snapshots ? Snapshot.read(DatabaseManager.snapshotFile()) : null;
+            if(image == null) InventoryStore.reset(); // drop anything a half-read snapshot marked
+            users = new ConcurrentHashMap<>(image != null ? image.users : DatabaseManager.loadUsers());
+            Map<String, String> names = new ConcurrentHashMap<>();
+            for(User u : users.values()) names.putIfAbsent(u.name, u.username);
+            usernamesByName = names;
+            List<Flight> loaded = image != null ? image.flights : DatabaseManager.loadFlights(); // Now loaded from DB
+            Map<String, Flight> index = new ConcurrentHashMap<>(loaded.size() * 2);
+            RouteIndex routeIndex = new RouteIndex();
+            Analytics.reset();
+            for(Flight f : loaded) { index.put(f.id, f); routeIndex.add(f); Analytics.flightAdded(f); }
+            flightIndex = index;
+            routes = routeIndex;
+            scheduleVersion.incrementAndGet();
+            flights = new CopyOnWriteArrayList<>(loaded);
+            Map<String, Ticket> loadedTickets = image != null ? image.tickets : new ConcurrentHashMap<>();
+            if(image == null) DatabaseManager.loadBookings(flightIndex, loadedTickets);
+            // Size each owner's set up front; growing one set by millions of tickets is mostly rehashing
+            Map<String, int[]> counts = new HashMap<>();
+            PnrGenerator.reset();
+            PnrGenerator.resume();
+            for(Ticket t : loadedTickets.values()) {
+                counts.computeIfAbsent(resolveOwner(t), k -> new int[1])[0]++;
+                PnrGenerator.observe(t.bookingId);
+            }
+            Map<String, Set<Ticket>> byUser = new ConcurrentHashMap<>(counts.size() * 2);
+            for(Map.Entry<String, int[]> e : counts.entrySet()) byUser.put(e.getKey(), ConcurrentHashMap.newKeySet(e.getValue()[0] * 2));
+            for(Ticket t : loadedTickets.values()) {
+                byUser.get(t.username).add(t);
+                InventoryStore.instance(t.f, t.date).board(t);
+            }
+            Analytics.bookedAll(loadedTickets.values());
+            tickets = loadedTickets;
+            ticketsByUser = byUser;
+            DatabaseManager.replay(DataStore::apply);
+            DatabaseManager.WalletLedger.replay(users);
+            DatabaseManager.loadArchiveTotals(Analytics::archivedTotals);
+            InventoryStore.roll();
+            if(DatabaseManager.ChangeLog.enabled) DatabaseManager.ChangeLog.start();
+            populated = true;
+        }
+
+        // Claims a free seat; false if another session got there first
+        public static boolean reserveSeat(FlightInstance fi, int seat) { return fi.seats.tryTake(seat); }
+
+        public static void releaseSeat(FlightInstance fi, int seat) { fi.seats.release(seat); }
+
+        // Seat holds: taken like a booking, but shown as held and given back on expiry
+        public static boolean holdSeat(FlightInstance fi, int seat) { return fi.seats.hold(seat); }
+
+        public static void releaseHeldSeat(FlightInstance fi, int seat) { fi.seats.releaseHeld(seat); }
+
+        public static void releaseSeat(Ticket t) {
+            int seat = t.f.layout.seatIndex(t.seat);
+            if(seat >= 0) InventoryStore.instance(t.f, t.date).seats.release(seat);
+        }
+
+        // Applies one journal record (op name followed by its CSV payload) to the in-memory state.
+        // Every op is idempotent so an interrupted compaction can be replayed safely.
+        static void apply(String[] rec) {
+            String[] d = Arrays.copyOfRange(rec, 1, rec.length);
+            try {
+                switch(DatabaseManager.JournalOp.valueOf(rec[0])) {
+                    case USER_ADD: {
+                        User u = DatabaseManager.parseUser(d);
+                        users.put(u.username, u);
+                        usernamesByName.putIfAbsent(u.name, u.username);
+                        break;
+                    }
+                    case WALLET_SET: {
+                        User u = users.get(d[0]);
+                        if(u != null) u.wallet = Money.parse(d[1]);
+                        break;
+                    }
+                    case FLIGHT_ADD: {
+                        Flight f = findFlight(d[0]);
+                        if(f == null) addFlight(DatabaseManager.parseFlight(d));
+                        else {
+                            routes.remove(f);
+                            Analytics.flightRemoved(f);
+                            String from = RouteIndex.pair(f.org, f.dst);
+                            f.org = d[1]; f.dst = d[2]; f.time = d[3]; f.price = Money.parse(d[4]);
+                            if(d.length >= 7 && !d[6].isEmpty()) f.duration = Integer.parseInt(d[6]);
+                            routes.add(f);
+                            Analytics.flightAdded(f);
+                            if(!from.equals(RouteIndex.pair(f.org, f.dst))) Analytics.rerouted(f, from, ticketsOn(f));
+                            scheduleVersion.incrementAndGet();
+                        }
+                        break;
+                    }
+                    case FLIGHT_DELETE: {
+                        Flight f = findFlight(d[0]);
+                        if(f != null) removeFlight(f);
+                        break;
+                    }
+                    case BOOKING_ADD: {
+                        if(tickets.containsKey(d[0])) break;
+                        // A seat still taken here is a cancelled booking's whose delete was logged after this
+                        // rebook (older primaries released first): the add takes the manifest slot over
+                        Ticket t = DatabaseManager.parseTicket(d, flightIndex);
+                        if(t != null) {
+                            reserveSeat(InventoryStore.instance(t.f, t.date), t.f.layout.seatIndex(t.seat));
+                            addTicket(t);
+                        }
+                        PnrGenerator.observe(d[0]); // even if the booking was later cancelled
+                        break;
+                    }
+                    case BOOKING_DELETE: {
+                        Ticket t = tickets.get(d[0]);
+                        if(t == null) break;
+                        FlightInstance fi = InventoryStore.existing(t.f, t.date.toEpochDay());
+                        boolean seated = fi != null && fi.seated(t); // false once a rebook holds the seat
+                        if(removeTicket(t) && seated) releaseSeat(t);
+                        break;
+                    }
+                }
+            } catch (Exception e) { /* Ignore corrupt journal records */ }
+        }
+
+        public static Flight findFlight(String id) { return flightIndex.get(id); }
+
+        // Legacy rows name their owner by display name only; resolve it once against the user list
+        private static String resolveOwner(Ticket t) {
+            if(t.username == null) t.username = usernamesByName.getOrDefault(t.owner, t.owner);
+            return t.username;
+        }
+
+        // Registers a ticket under its PNR and its owner; false if the PNR is already taken
+        public static boolean addTicket(Ticket t) {
+            if(tickets.putIfAbsent(t.bookingId, t) != null) return false;
+            ticketsByUser.computeIfAbsent(resolveOwner(t), k -> ConcurrentHashMap.newKeySet()).add(t);
+            InventoryStore.instance(t.f, t.date).board(t);
+            Analytics.booked(t);
+            return true;
+        }
+
+        // False if the ticket was already removed, e.g. cancelled from another session
+        public static boolean removeTicket(Ticket t) {
+            if(!unlist(t)) return false;
+            Analytics.cancelled(t);
+            return true;
+        }
+
+        // A past departure's ticket leaving the live store for the archive: still a sale
+        static void archiveTicket(Ticket t) {
+            if(unlist(t)) Analytics.archived(t);
+        }
+
+        private static boolean unlist(Ticket t) {
+            if(!tickets.remove(t.bookingId, t)) return false;
+            Set<Ticket> own = ticketsByUser.get(resolveOwner(t));
+            if(own != null) own.remove(t);
+            FlightInstance fi = InventoryStore.existing(t.f, t.date.toEpochDay());
+            if(fi != null) fi.unboard(t);
+            return true;
+        }
+
+        public static Collection<Ticket> ticketsOf(String username) {
+            Set<Ticket> own = ticketsByUser.get(username);
+            return own == null ? Collections.<Ticket>emptySet() : own;
+        }
+
+        // A flight's live tickets departing from one date to another (inclusive), by date and then seat.
+        // Reads only that flight's departures on those days, however much else is booked.
+        public static List<Ticket> manifest(String flightId, LocalDate from, LocalDate to) {
+            Flight f = findFlight(flightId);
+            List<Ticket> out = new ArrayList<>();
+            if(f == null) return out;
+            for(long d = from.toEpochDay(); d <= to.toEpochDay(); d++) {
+                FlightInstance fi = InventoryStore.existing(f, d);
+                if(fi != null) fi.manifest(out);
+            }
+            return out;
+        }
+
+        public static void addFlight(Flight f) {
+            flights.add(f);
+            flightIndex.put(f.id, f);
+            routes.add(f);
+            Analytics.flightAdded(f);
+            scheduleVersion.incrementAndGet();
+        }
+
+        // Many flights in one copy of the schedule list (bulk import)
+        public static void addFlights(List<Flight> fs) {
+            flights.addAll(fs);
+            for(Flight f : fs) {
+                flightIndex.put(f.id, f);
+                routes.add(f);
+                Analytics.flightAdded(f);
+            }
+            scheduleVersion.incrementAndGet();
+        }
+
+        public static void removeFlight(Flight f) {
+            flights.remove(f);
+            flightIndex.remove(f.id);
+            routes.remove(f);
+            Analytics.flightRemoved(f);
+            Analytics.dropped(f, ticketsOn(f));
+            scheduleVersion.incrementAndGet();
+        }
+
+        // Every live ticket on a flight, any date. A full scan, so only for schedule changes.
+        static List<Ticket> ticketsOn(Flight f) {
+            List<Ticket> out = new ArrayList<>();
+            for(Ticket t : tickets.values()) if(t.f == f) out.add(t);
+            return out;
+        }
+    }
+
+    // Seat inventory partitioned by departure date. A partition holds the FlightInstances that
+    // operate on its day. They are created on first touch, so memory follows the dates that are
+    // actually searched or booked within the booking window (today plus windowDays - 1).
+    // Once a day is in the past, its bookings move to archive/bookings-<date>.csv, its sales totals
+    // to archive/totals-<date>.csv, and the partition is dropped. An archived day is read back only when someone asks for it.
+    static class InventoryStore {
+        static int windowDays = 360;
+        static volatile boolean demoFill = false; // terminal demo: new departures open partly sold
+
+        static final class Partition {
+            final LocalDate date;
+            final Map<Flight, FlightInstance> flights = new ConcurrentHashMap<>();
+            Partition(LocalDate date) { this.date = date; }
+        }
+
+        private static final ConcurrentSkipListMap<Long, Partition> partitions = new ConcurrentSkipListMap<>(); // by epoch day
+        private static final Map<Long, List<Ticket>> archives = new ConcurrentHashMap<>(); // past days read back, by epoch day
+        private static volatile long rolledTo = Long.MIN_VALUE; // the day everything before was archived
+
+        static void reset() {
+            partitions.clear();
+            archives.clear();
+            rolledTo = Long.MIN_VALUE;
+        }
+
+        static long today() { return LocalDate.now().toEpochDay(); }
+
+        // Whether any departure of that day has been opened; before a roll, true of a past day only while it has live tickets
+        static boolean opened(LocalDate date) { return partitions.containsKey(date.toEpochDay()); }
+
+        // Minutes since the epoch on the local clock, the scale FlightInstance.departure() uses
+        static long localMinute(long millis) { return Math.floorDiv(millis + TimeZone.getDefault().getOffset(millis), 60_000L); }
+
+        private static Partition partition(long day) {
+            Partition p = partitions.get(day);
+            return p != null ? p : partitions.computeIfAbsent(day, d -> new Partition(LocalDate.ofEpochDay(d)));
+        }
+
+        // The partition's own LocalDate, so tickets on one day share a single instance
+        static LocalDate date(long epochDay) {
+            Partition p = partitions.get(epochDay);
+            if(p != null) return p.date;
+            return epochDay < rolledTo ? LocalDate.ofEpochDay(epochDay) : partition(epochDay).date; // an archived day opens nothing
+        }
+
+        static FlightInstance instance(Flight f, LocalDate date) { return instance(partition(date.toEpochDay()), f); }
+
+        // Null if that departure was never opened, so nothing is booked on it; creates nothing
+        static FlightInstance existing(Flight f, long day) {
+            Partition p = partitions.get(day);
+            return p == null ? null : p.flights.get(f);
+        }
+
+        private static FlightInstance instance(Partition p, Flight f) {
+            FlightInstance fi = p.flights.get(f);
+            return fi != null ? fi : p.flights.computeIfAbsent(f, k -> open(k, p.date));
+        }
+
+        private static FlightInstance open(Flight f, LocalDate date) {
+            FlightInstance fi = new FlightInstance(f, date);
+            if(demoFill) {
+                Random r = new Random();
+                int capacity = f.layout.capacity();
+                for (int i = 0; i < capacity / 4; i++) {
+                    if(r.nextInt(10) > 7) fi.seats.tryTake(r.nextInt(capacity)); // 20% chance random fill
+                }
+            }
+            return fi;
+        }
+
+        static boolean inWindow(LocalDate date) {
+            long d = date.toEpochDay(), t = today();
+            return d >= t && d < t + windowDays;
+        }
+
+        static boolean departed(FlightInstance fi) { return fi.departure() <= localMinute(System.currentTimeMillis()); }
+
+        // The first departure of a daily flight that has not left yet
+        static FlightInstance next(Flight f) {
+            FlightInstance fi = instance(f, date(today()));
+            return departed(fi) ? instance(f, date(today() + 1)) : fi;
+        }
+
+        // Every departure of the given flights from one date to another (inclusive), clamped to
+        // the booking window and ordered by date, then time. Only those days' partitions are touched.
+        static List<FlightInstance> departures(Collection<Flight> flights, LocalDate from, LocalDate to) {
+            roll();
+            List<Flight> byTime = new ArrayList<>(flights);
+            byTime.sort(Comparator.comparingInt((Flight f) -> ItinerarySearch.minutes(f.time)));
+            long t = today(), first = Math.max(from.toEpochDay(), t), last = Math.min(to.toEpochDay(), t + windowDays - 1);
+            List<FlightInstance> out = new ArrayList<>();
+            for(long d = first; d <= last; d++) {
+                Partition p = partition(d);
+                for(Flight f : byTime) {
+                    FlightInstance fi = instance(p, f);
+                    if(d > t || !departed(fi)) out.add(fi);
+                }
+            }
+            return out;
+        }
+
+        // Bookings of a day that has been archived, read from disk the first time they are asked for.
+        // Kept apart from the partitions: a past day has no inventory to open.
+        static List<Ticket> archived(LocalDate date) {
+            return archives.computeIfAbsent(date.toEpochDay(), d -> DatabaseManager.loadArchive(date, DataStore.flightIndex));
+        }
+
+        // Archives every day before today; runs on startup and on the first search of a new day
+        static void roll() {
+            long t = today();
+            if(t == rolledTo) return;
+            synchronized(InventoryStore.class) {
+                if(t == rolledTo) return;
+                Map<LocalDate, List<Ticket>> past = new TreeMap<>();
+                for(Ticket tk : DataStore.tickets.values()) {
+                    if(tk.date.toEpochDay() < t) past.computeIfAbsent(tk.date, k -> new ArrayList<>()).add(tk);
+                }
+                for(Map.Entry<LocalDate, List<Ticket>> e : past.entrySet()) {
+                    DatabaseManager.archiveBookings(e.getKey(), e.getValue());
+                    for(Ticket tk : e.getValue()) DataStore.archiveTicket(tk);
+                    archives.remove(e.getKey().toEpochDay()); // read back before these rows reached it
+                }
+                partitions.headMap(t).clear();
+                rolledTo = t;
+            }
+        }
+    }
+
+    // Search index over the schedule: flights by origin, by destination and by origin-destination
+    // pair, plus a prefix trie of airport codes for partial queries. Maintained on every add/remove,
+    // so a query costs the codes and flights it matches rather than a scan of every flight.
+    static class RouteIndex {
+        private final Map<String, Set<Flight>> byOrigin = new ConcurrentHashMap<>();
+        private final Map<String, Set<Flight>> byDest = new ConcurrentHashMap<>();
+        private final Map<String, Set<Flight>> byPair = new ConcurrentHashMap<>();
+        private final CodeTrie codes = new CodeTrie();
+
+        static String pair(String org, String dst) { return org + "-" + dst; }
+
+        void add(Flight f) {
+            byOrigin.computeIfAbsent(f.org, k -> ConcurrentHashMap.newKeySet()).add(f);
+            byDest.computeIfAbsent(f.dst, k -> ConcurrentHashMap.newKeySet()).add(f);
+            byPair.computeIfAbsent(pair(f.org, f.dst), k -> ConcurrentHashMap.newKeySet()).add(f);
+            codes.add(f.org);
+            codes.add(f.dst);
+        }
+
+        void remove(Flight f) {
+            if(!unlink(byOrigin, f.org, f)) return;
+            unlink(byDest, f.dst, f);
+            unlink(byPair, pair(f.org, f.dst), f);
+            codes.remove(f.org);
+            codes.remove(f.dst);
+        }
+
+        private static boolean unlink(Map<String, Set<Flight>> index, String key, Flight f) {
+            Set<Flight> set = index.get(key);
+            if(set == null || !set.remove(f)) return false;
+            if(set.isEmpty()) index.remove(key, set);
+            return true;
+        }
+
+        Set<Flight> fromOrigin(String code) { return byOrigin.getOrDefault(code, Collections.emptySet()); }
+        Set<Flight> toDestination(String code) { return byDest.getOrDefault(code, Collections.emptySet()); }
+        Set<Flight> between(String org, String dst) { return byPair.getOrDefault(pair(org, dst), Collections.emptySet()); }
+
+        // "DEL-BOM" / "DEL BOM" -> that route; otherwise every flight touching an airport whose code
+        // starts with the query. Results come back in departure-time order.
+        List<Flight> search(String query) {
+            List<Flight> hits = new ArrayList<>();
+            String[] legs = query.split("[\\s>-]+");
+            if(legs.length == 2) hits.addAll(between(legs[0], legs[1]));
+            else {
+                List<String> matched = codes.withPrefix(query);
+                for(String code : matched) hits.addAll(fromOrigin(code));
+                for(String code : matched) {
+                    for(Flight f : toDestination(code)) if(!f.org.startsWith(query)) hits.add(f); // else already listed by origin
+                }
+            }
+            hits.sort(BY_DEPARTURE);
+            return hits;
+        }
+
+        static final Comparator<Flight> BY_DEPARTURE = (a, b) -> {
+            int c = a.time.compareTo(b.time);
+            return c != 0 ? c : a.id.compareTo(b.id);
+        };
+    }
+
+    // Reference-counted airport codes (one count per flight endpoint), searchable by prefix
+    static class CodeTrie {
+        private static class Node {
+            final TreeMap<Character, Node> children = new TreeMap<>();
+            String code;
+            int refs;
+        }
+
+        private final Node root = new Node();
+
+        synchronized void add(String code) {
+            Node n = root;
+            for(char c : code.toCharArray()) n = n.children.computeIfAbsent(c, k -> new Node());
+            n.code = code;
+            n.refs++;
+        }
+
+        synchronized void remove(String code) {
+            Node n = root;
+            for(char c : code.toCharArray()) {
+                n = n.children.get(c);
+                if(n == null) return;
+            }
+            if(n.refs > 0 && --n.refs == 0) n.code = null; // empty nodes are left for reuse
+        }
+
+        synchronized List<String> withPrefix(String prefix) {
+            Node n = root;
+            for(char c : prefix.toCharArray()) {
+                n = n.children.get(c);
+                if(n == null) return Collections.emptyList();
+            }
+            List<String> out = new ArrayList<>();
+            collect(n, out);
+            return out;
+        }
+
+        private static void collect(Node n, List<String> out) {
+            if(n.code != null) out.add(n.code);
+            for(Node child : n.children.values()) collect(child, out);
+        }
+    }
+
+    // Connecting itineraries over the schedule graph (airports are nodes, flights are edges).
+    // A best-first search pops partial journeys in cost order (fare so far, or minutes since the
+    // first departure), up to maxStops connections, and only connects legs with at least
+    // minConnectMins on the ground. Flights repeat daily, so a late arrival rolls to the next
+    // day's departure. A partial journey is dropped only when 'limit' others at the same airport
+    // are at least as good for anything that can follow it. Per-airport legs sorted by departure
+    // are cached until DataStore.scheduleVersion changes.
+    static class ItinerarySearch {
+        enum Objective { CHEAPEST, FASTEST }
+
+        static int minConnectMins = 45;
+
+        static class Itinerary {
+            final LocalDate date; // of the first departure
+            final List<Flight> legs;
+            final List<Integer> departures; // minutes from the first departure's midnight
+            final long price;
+            final int elapsed; // first departure to last arrival, minutes
+
+            Itinerary(LocalDate date, List<Flight> legs, List<Integer> departures, long price, int elapsed) {
+                this.date = date; this.legs = legs; this.departures = departures; this.price = price; this.elapsed = elapsed;
+            }
+
+            int stops() { return legs.size() - 1; }
+
+            FlightInstance leg(int i) { return InventoryStore.instance(legs.get(i), InventoryStore.date(date.toEpochDay() + departures.get(i) / 1440)); }
+        }
+
+        // One step of a partial journey; journeys share prefixes through 'prev'
+        private static class Label {
+            final Label prev;
+            final Flight f;
+            final String at;
+            final int dep, arr, stops, start; // start: the first leg's departure
+            final long price;
+            final double cost;
+            Label(Label prev, Flight f, int dep, long fare, double cost) {
+                this.prev = prev; this.f = f; this.at = f.dst; this.dep = dep; this.arr = dep + f.duration;
+                this.stops = prev == null ? 0 : prev.stops + 1;
+                this.start = prev == null ? dep : prev.start;
+                this.price = (prev == null ? 0 : prev.price) + fare;
+                this.cost = cost;
+            }
+            boolean visited(String airport) {
+                for(Label l = this; l != null; l = l.prev) if(l.f.org.equals(airport)) return true;
+                return false;
+            }
+
+            // At least as good for anything that can follow: arrived no later, with no more stops, and
+            // paid no more so far (CHEAPEST) or left the origin no earlier (FASTEST)
+            boolean covers(Label o, Objective objective) {
+                if(arr > o.arr || stops > o.stops) return false;
+                return objective == Objective.CHEAPEST ? price <= o.price : start >= o.start;
+            }
+        }
+
+        // Departures by origin, cached for one schedule version. A schedule change swaps in a fresh
+        // cache instead of clearing a shared one, so a search still reading the old routes can only
+        // fill a cache nobody looks up again.
+        private static final class Adjacency {
+            final long version;
+            final Map<String, Flight[]> legs = new ConcurrentHashMap<>();
+            Adjacency(long version) { this.version = version; }
+        }
+        private static volatile Adjacency adjacency = new Adjacency(-1);
+
+        // "HH:MM" to minutes after midnight without allocating; anything unparseable counts as 00:00
+        static int minutes(String hhmm) {
+            int h = 0, m = 0, colon = hhmm.indexOf(':');
+            if(colon < 0) return 0;
+            for(int i = 0; i < hhmm.length(); i++) {
+                char c = hhmm.charAt(i);
+                if(c == ' ' || c == ':') continue;
+                if(c < '0' || c > '9') return 0;
+                if(i < colon) h = h * 10 + (c - '0'); else m = m * 10 + (c - '0');
+            }
+            return h * 60 + m;
+        }
+
+        private static Flight[] legsFrom(String airport) {
+            long v = DataStore.scheduleVersion.get();
+            Adjacency adj = adjacency;
+            if(adj.version != v) adjacency = adj = new Adjacency(v); // one from a racing, older search just misses next time
+            return adj.legs.computeIfAbsent(airport, a -> {
+                Flight[] legs = DataStore.routes.fromOrigin(a).toArray(new Flight[0]);
+                Arrays.sort(legs, Comparator.comparingInt((Flight f) -> minutes(f.time)));
+                return legs;
+            });
+        }
+
+        // Journeys whose first leg leaves on 'date'; fares are those of each leg's own departure day
+        public static List<Itinerary> search(String org, String dst, LocalDate date, int maxStops, Objective objective, int limit) {
+            List<Itinerary> results = new ArrayList<>();
+            if(org.equals(dst)) return results;
+            PriorityQueue<Label> queue = new PriorityQueue<>(Comparator.comparingDouble((Label l) -> l.cost));
+            Map<String, List<Label>> kept = new HashMap<>(); // per connecting airport, the partial journeys still worth extending
+            expand(null, org, dst, date, maxStops, objective, limit, kept, queue);
+
+            while(!queue.isEmpty() && results.size() < limit) {
+                Label l = queue.poll();
+                if(l.at.equals(dst)) { results.add(toItinerary(date, l)); continue; }
+                if(covered(l, kept.get(l.at), objective, limit)) continue; // overtaken since it was queued
+                expand(l, org, dst, date, maxStops, objective, limit, kept, queue);
+            }
+            return results;
+        }
+
+        // Queues the legs out of 'from' (or out of the origin when from is null). On the last
+        // allowed leg only flights into the destination matter, so those come straight from the
+        // route index. Every cost only grows along a journey, so destinations pop in result order.
+        private static void expand(Label from, String org, String dst, LocalDate date, int maxStops, Objective objective, int limit,
+                                   Map<String, List<Label>> kept, PriorityQueue<Label> queue) {
+            String at = from == null ? org : from.at;
+            int stops = from == null ? 0 : from.stops + 1;
+            int ready = from == null ? 0 : from.arr + minConnectMins;
+
+            Iterable<Flight> legs = stops == maxStops ? DataStore.routes.between(at, dst) : Arrays.asList(legsFrom(at));
+            for(Flight f : legs) {
+                boolean last = f.dst.equals(dst);
+                if(!last && (f.dst.equals(org) || (from != null && from.visited(f.dst)))) continue;
+                int dep = minutes(f.time);
+                if(from != null) dep += (ready - dep + 1439) / 1440 * 1440; // next daily departure at or after 'ready'
+                FlightInstance fi = InventoryStore.instance(f, InventoryStore.date(date.toEpochDay() + dep / 1440));
+                if(!InventoryStore.inWindow(fi.date) || (from == null && InventoryStore.departed(fi))) continue;
+                long fare = PricingEngine.fare(fi, CabinClass.ECONOMY);
+                double cost = objective == Objective.CHEAPEST ? (from == null ? 0 : from.price) + fare : dep + f.duration - (from == null ? dep : from.start);
+                Label next = new Label(from, f, dep, fare, cost);
+                if(!last) {
+                    List<Label> here = kept.computeIfAbsent(f.dst, k -> new ArrayList<>());
+                    if(covered(next, here, objective, limit)) continue;
+                    here.add(next);
+                }
+                queue.add(next);
+            }
+        }
+
+        // True once 'limit' other journeys at the airport cover l: each of them followed by l's best
+        // continuation is a distinct journey at least as good, so l cannot make the top 'limit'
+        private static boolean covered(Label l, List<Label> others, Objective objective, int limit) {
+            if(others == null) return false;
+            int n = 0;
+            for(Label o : others) if(o != l && o.covers(l, objective) && ++n >= limit) return true;
+            return false;
+        }
+
+        private static Itinerary toItinerary(LocalDate date, Label last) {
+            LinkedList<Flight> legs = new LinkedList<>();
+            LinkedList<Integer> deps = new LinkedList<>();
+            for(Label l = last; l != null; l = l.prev) { legs.addFirst(l.f); deps.addFirst(l.dep); }
+            return new Itinerary(date, new ArrayList<>(legs), new ArrayList<>(deps), last.price, last.arr - last.start);
+        }
+    }
+
+    // Dynamic fares. A cabin sells through fare buckets that close as its load factor rises, and
+    // the fare is lifted again as departure nears. Each departure caches the current fare per cabin
+    // together with the cabin's free-seat count, the schedule version and the moment its
+    // time-to-departure band ends. A lookup is a few compares until a seat in that cabin is taken
+    // or released, the schedule changes, or the band rolls over. Listing thousands of flights
+    // therefore costs almost nothing.
+    static class PricingEngine {
+        // Bucket b stays open while less than BUCKET_FILL[b] of the cabin is sold
+        static final double[] BUCKET_FILL = { 0.40, 0.70, 0.90, 1.00 };
+        static final double[] BUCKET_FACTOR = { 0.85, 1.00, 1.25, 1.60 };
+        static final String[] BUCKET_NAME = { "SAVER", "STANDARD", "FLEX", "LAST SEATS" };
+        // Minutes before departure from which each surcharge applies, latest first
+        static final int[] CLOSE_IN_MINUTES = { 180, 720 };
+        static final double[] CLOSE_IN_FACTOR = { 1.30, 1.10 };
+
+        // A cached fare and the state it was computed from
+        static final class Point {
+            final long schedule, until;
+            final int free;
+            final long fare;
+            Point(long schedule, int free, long until, long fare) { this.schedule = schedule; this.free = free; this.until = until; this.fare = fare; }
+        }
+
+        static long fare(FlightInstance fi, CabinClass cabin) {
+            Point p = fi.fares[cabin.ordinal()];
+            long now = System.currentTimeMillis();
+            if(p == null || p.free != fi.seats.freeSeats(cabin) || p.schedule != DataStore.scheduleVersion.get() || now >= p.until) {
+                p = price(fi, cabin, now);
+                fi.fares[cabin.ordinal()] = p; // racing writers store equivalent points
+            }
+            return p.fare;
+        }
+
+        // Full computation, bypassing the cache
+        static Point price(FlightInstance fi, CabinClass cabin, long now) {
+            long schedule = DataStore.scheduleVersion.get();
+            int free = fi.seats.freeSeats(cabin);
+            long untilDeparture = fi.departure() - InventoryStore.localMinute(now);
+            int band = band(untilDeparture);
+            long bandEnds = band == 0 ? untilDeparture : untilDeparture - CLOSE_IN_MINUTES[band - 1]; // the closest band ends at departure
+            long until = (now / 60_000 + Math.max(1, bandEnds)) * 60_000;
+            double fare = fi.f.price / 100.0 * cabin.multiplier * BUCKET_FACTOR[bucket(fi.f, cabin, free)] * (band < CLOSE_IN_FACTOR.length ? CLOSE_IN_FACTOR[band] : 1.0);
+            return new Point(schedule, free, until, Money.rupees(Math.round(fare))); // whole rupees
+        }
+
+        static int bucket(FlightInstance fi, CabinClass cabin) { return bucket(fi.f, cabin, fi.seats.freeSeats(cabin)); }
+
+        private static int bucket(Flight f, CabinClass cabin, int free) {
+            int capacity = f.layout.capacity(cabin);
+            double sold = capacity == 0 ? 1.0 : (double) (capacity - free) / capacity;
+            for(int b = 0; b < BUCKET_FILL.length - 1; b++) if(sold < BUCKET_FILL[b]) return b;
+            return BUCKET_FILL.length - 1;
+        }
+
+        private static int band(long untilDeparture) {
+            for(int b = 0; b < CLOSE_IN_MINUTES.length; b++) if(untilDeparture < CLOSE_IN_MINUTES[b]) return b;
+            return CLOSE_IN_MINUTES.length;
+        }
+    }
+
+    // Latency and error counts for the storage and booking hot paths, always on. Each operation
+    // has a log-linear histogram in the HDR style: 32 linear sub-buckets per power of two of
+    // nanoseconds (about 3% error), so recording is a few shifts and one atomic add, and
+    // percentiles are read from the bucket counts. Operations slower than jfrThresholdNanos are
+    // also committed as "skyconnect.Operation" JFR events when the JVM has JFR (11+). The event
+    // type is built reflectively so the app still compiles and runs on Java 8.
+    static class Metrics {
+        enum Op {
+            LOAD_USERS("loadUsers"), LOAD_FLIGHTS("loadFlights"), LOAD_BOOKINGS("loadBookings"),
+            SAVE_BOOKING("saveBooking"), SAVE_BATCH("saveBatch"), UPDATE_WALLET("updateUserWallet"), LEDGER_APPEND("walletLedger"), DELETE_BOOKING("deleteBooking"),
+            SEARCH("search"), CONFIRM("confirm"), REPLICATION_LAG("replicationLag");
+            final String label;
+            Op(String label) { this.label = label; }
+        }
+
+        static final class Histogram {
+            private static final int SUB_BITS = 5, SUB = 1 << SUB_BITS, MAX_EXP = 40; // up to ~18 minutes
+            private final AtomicLongArray counts = new AtomicLongArray((MAX_EXP - SUB_BITS + 2) * SUB);
+            private final LongAdder count = new LongAdder(), sum = new LongAdder();
+            private final java.util.concurrent.atomic.LongAccumulator max = new java.util.concurrent.atomic.LongAccumulator(Math::max, 0);
+
+            void record(long nanos) {
+                counts.incrementAndGet(index(Math.max(0, nanos)));
+                count.increment();
+                sum.add(nanos);
+                max.accumulate(nanos);
+            }
+
+            private static int index(long v) {
+                if(v < SUB) return (int) v;
+                int exp = Math.min(63 - Long.numberOfLeadingZeros(v), MAX_EXP);
+                int sub = (int) (exp == MAX_EXP && v >>> MAX_EXP > 1 ? SUB - 1 : (v >>> (exp - SUB_BITS)) & (SUB - 1));
+                return (exp - SUB_BITS + 1) * SUB + sub;
+            }
+
+            // Middle of the bucket
+            private static long value(int index) {
+                if(index < SUB) return index;
+                int shift = index / SUB - 1;
+                return ((long) (SUB + index % SUB) << shift) + (1L << shift) / 2;
+            }
+
+            long count() { return count.sum(); }
+            long mean() { long n = count.sum(); return n == 0 ? 0 : sum.sum() / n; }
+            long max() { return max.get(); }
+
+            long percentile(double q) {
+                long n = 0;
+                long[] snapshot = new long[counts.length()];
+                for(int i=0; i<snapshot.length; i++) n += snapshot[i] = counts.get(i);
+                if(n == 0) return 0;
+                long rank = Math.max(1, (long) Math.ceil(q * n)), seen = 0;
+                for(int i=0; i<snapshot.length; i++) {
+                    if((seen += snapshot[i]) >= rank) return Math.min(value(i), max());
+                }
+                return max();
+            }
+        }
+
+        static final Histogram[] timers = new Histogram[Op.values().length];
+        static { for(int i=0; i<timers.length; i++) timers[i] = new Histogram(); }
+        static final LongAdder ioErrors = new LongAdder();
+        static long jfrThresholdNanos = 1_000_000;
+        static int logSeconds = 60; // metrics.log interval, 0 for none
+        private static ScheduledExecutorService logger;
+
+        static long start() { return System.nanoTime(); }
+
+        static void stop(Op op, long t0) { record(op, System.nanoTime() - t0); }
+
+        static void record(Op op, long nanos) {
+            timers[op.ordinal()].record(nanos);
+            if(nanos >= jfrThresholdNanos) Jfr.emit(op.label, nanos);
+        }
+
+        static void ioError() { ioErrors.increment(); }
+
+        // One line per operation that has run: count, mean, p50, p99, p99.9 and max
+        static List<String> lines() {
+            List<String> out = new ArrayList<>();
+            out.add(String.format("%-18s %12s %10s %10s %10s %10s %10s", "OPERATION", "COUNT", "MEAN", "P50", "P99", "P99.9", "MAX"));
+            for(Op op : Op.values()) {
+                Histogram h = timers[op.ordinal()];
+                if(h.count() == 0) continue;
+                out.add(String.format("%-18s %,12d %10s %10s %10s %10s %10s", op.label, h.count(), Bench.duration(h.mean()),
+                    Bench.duration(h.percentile(0.50)), Bench.duration(h.percentile(0.99)), Bench.duration(h.percentile(0.999)), Bench.duration(h.max())));
+            }
+            out.add("I/O errors: " + ioErrors.sum());
+            return out;
+        }
+
+        // Appends a timestamped copy of lines() to file every logSeconds
+        static synchronized void startLog(String file) {
+            if(logger != null || logSeconds <= 0) return;
+            logger = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-log");
+                t.setDaemon(true);
+                return t;
+            });
+            logger.scheduleAtFixedRate(() -> {
+                try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(file, true)))) {
+                    pw.println("# " + java.time.LocalDateTime.now().withNano(0));
+                    for(String line : lines()) pw.println(line);
+                } catch (IOException e) { ioError(); }
+            }, logSeconds, logSeconds, TimeUnit.SECONDS);
+        }
+
+        // jdk.jfr through reflection: EventFactory builds the event type at runtime
+        private static final class Jfr {
+            private static final Object factory;
+            private static final Method newEvent, set, commit;
+            static {
+                Object f = null;
+                Method n = null, s = null, c = null;
+                try {
+                    Class<?> ae = Class.forName("jdk.jfr.AnnotationElement"), vd = Class.forName("jdk.jfr.ValueDescriptor");
+                    Class<?> ef = Class.forName("jdk.jfr.EventFactory"), ev = Class.forName("jdk.jfr.Event");
+                    Constructor<?> ann = ae.getConstructor(Class.class, Object.class);
+                    List<Object> type = Arrays.asList(
+                        ann.newInstance(Class.forName("jdk.jfr.Name"), "skyconnect.Operation"),
+                        ann.newInstance(Class.forName("jdk.jfr.Label"), "SkyConnect Operation"),
+                        ann.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "SkyConnect" }));
+                    List<Object> fields = Arrays.asList(
+                        vd.getConstructor(Class.class, String.class).newInstance(String.class, "operation"),
+                        vd.getConstructor(Class.class, String.class, List.class).newInstance(long.class, "latency",
+                            Collections.singletonList(ann.newInstance(Class.forName("jdk.jfr.Timespan"), "NANOSECONDS"))));
+                    f = ef.getMethod("create", List.class, List.class).invoke(null, type, fields);
+                    n = ef.getMethod("newEvent");
+                    s = ev.getMethod("set", int.class, Object.class);
+                    c = ev.getMethod("commit");
+                } catch (ReflectiveOperationException | RuntimeException e) { f = null; } // Java 8, or JFR left out of the runtime
+                factory = f; newEvent = n; set = s; commit = c;
+            }
+
+            static void emit(String operation, long nanos) {
+                if(factory == null) return;
+                try {
+                    Object e = newEvent.invoke(factory);
+                    set.invoke(e, 0, operation);
+                    set.invoke(e, 1, nanos);
+                    commit.invoke(e);
+                } catch (ReflectiveOperationException e) { }
+            }
+        }
+    }
+
+    // Running totals for the admin dashboard, updated on every booking, cancellation and schedule
+    // change so reads never scan the tickets. Striped adders keep concurrent sessions from
+    // contending on a shared counter; a read sums a few cells per figure.
+    static class Analytics {
+        // bookings and revenue are lifetime sales, archived days included; live counts the bookings
+        // on departures still on sale, against seats, for the load factor
+        static class Tally {
+            final LongAdder bookings = new LongAdder(), seats = new LongAdder(); // seats: capacity on sale
+            final LongAdder revenue = new LongAdder(); // paise
+            final LongAdder live = new LongAdder();
+
+            void record(Ticket t, int sign) { add(sign, sign * t.paidPrice, sign); }
+            void add(long sold, long paise, long onSale) { bookings.add(sold); revenue.add(paise); live.add(onSale); }
+            double loadFactor() { long cap = seats.sum(); return cap == 0 ? 0 : (double) live.sum() / cap; }
+            void reset() { bookings.reset(); seats.reset(); revenue.reset(); live.reset(); }
+        }
+
+        static final Tally total = new Tally();
+        static final Map<String, Tally> byFlight = new ConcurrentHashMap<>(); // flight id
+        static final Map<String, Tally> byRoute = new ConcurrentHashMap<>(); // "ORG-DST"
+        static final Tally[] byCabin = tallies(CabinClass.values().length);
+        static final Tally[] byMeal = tallies(MealType.values().length);
+
+        private static Tally[] tallies(int n) {
+            Tally[] t = new Tally[n];
+            for(int i=0; i<n; i++) t[i] = new Tally();
+            return t;
+        }
+
+        private static Tally flight(String id) { return byFlight.computeIfAbsent(id, k -> new Tally()); }
+        private static Tally route(Flight f) { return byRoute.computeIfAbsent(RouteIndex.pair(f.org, f.dst), k -> new Tally()); }
+
+        static void reset() {
+            total.reset();
+            for(Tally t : byCabin) t.reset();
+            for(Tally t : byMeal) t.reset();
+            byFlight.clear();
+            byRoute.clear();
+        }
+
+        static void flightAdded(Flight f) { seats(f, 1); }
+        static void flightRemoved(Flight f) { seats(f, -1); }
+
+        // A daily flight puts one departure per day of the booking window on sale
+        private static void seats(Flight f, int sign) {
+            SeatLayout l = f.layout;
+            int days = sign * InventoryStore.windowDays;
+            total.seats.add(days * l.capacity());
+            flight(f.id).seats.add(days * l.capacity());
+            route(f).seats.add(days * l.capacity());
+            for(CabinClass cc : CabinClass.values()) byCabin[cc.ordinal()].seats.add(days * l.capacity(cc));
+        }
+
+        static void booked(Ticket t) { record(t, 1); }
+
+        // Bulk form of booked() for a freshly loaded store: sums locally, then touches each tally once
+        static void bookedAll(Collection<Ticket> tickets) {
+            Map<Flight, long[]> perFlight = new IdentityHashMap<>();
+            long[][] cabin = new long[byCabin.length][2], meal = new long[byMeal.length][2];
+            for(Ticket t : tickets) {
+                long[] f = perFlight.computeIfAbsent(t.f, k -> new long[2]);
+                f[0]++; f[1] += t.paidPrice;
+                cabin[t.travelClass.ordinal()][0]++; cabin[t.travelClass.ordinal()][1] += t.paidPrice;
+                meal[t.meal.ordinal()][0]++; meal[t.meal.ordinal()][1] += t.paidPrice;
+            }
+            for(Map.Entry<Flight, long[]> e : perFlight.entrySet()) {
+                long[] v = e.getValue();
+                for(Tally tally : new Tally[] { total, flight(e.getKey().id), route(e.getKey()) }) tally.add(v[0], v[1], v[0]);
+            }
+            for(int i=0; i<cabin.length; i++) byCabin[i].add(cabin[i][0], cabin[i][1], cabin[i][0]);
+            for(int i=0; i<meal.length; i++) byMeal[i].add(meal[i][0], meal[i][1], meal[i][0]);
+        }
+        static void cancelled(Ticket t) { record(t, -1); }
+
+        // A flight moved to another route takes its live tickets along; archived days stay with the
+        // route they flew, as they do when the totals are read back on load
+        static void rerouted(Flight f, String from, Collection<Ticket> live) {
+            Tally old = byRoute.computeIfAbsent(from, k -> new Tally()), now = route(f);
+            for(Ticket t : live) { old.record(t, -1); now.record(t, 1); }
+        }
+
+        // A deleted flight's tickets are not loaded again, so they leave the tallies with it
+        static void dropped(Flight f, Collection<Ticket> live) {
+            for(Ticket t : live) record(t, -1);
+            byFlight.computeIfPresent(f.id, (k, t) -> t.bookings.sum() == 0 && t.seats.sum() == 0 ? null : t);
+        }
+
+        // Sold, but its departure is no longer on sale
+        static void archived(Ticket t) {
+            total.live.decrement();
+            flight(t.f.id).live.decrement();
+            route(t.f).live.decrement();
+            byCabin[t.travelClass.ordinal()].live.decrement();
+            byMeal[t.meal.ordinal()].live.decrement();
+        }
+
+        // One row of an archived day's totals (DatabaseManager.writeArchiveTotals). A day written by an
+        // archive that crashed before its live rows went is skipped; those tickets are still counted live.
+        static void archivedTotals(LocalDate date, String[] row) {
+            if(date.toEpochDay() >= InventoryStore.today() || InventoryStore.opened(date)) return;
+            try {
+                long n = Long.parseLong(row[5]), paise = Money.parse(row[6]);
+                total.add(n, paise, 0);
+                flight(row[0]).add(n, paise, 0);
+                if(!row[1].isEmpty()) byRoute.computeIfAbsent(RouteIndex.pair(row[1], row[2]), k -> new Tally()).add(n, paise, 0);
+                byCabin[CabinClass.valueOf(row[3]).ordinal()].add(n, paise, 0);
+                byMeal[MealType.valueOf(row[4]).ordinal()].add(n, paise, 0);
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) { Metrics.ioError(); }
+        }
+
+        private static void record(Ticket t, int sign) {
+            total.record(t, sign);
+            flight(t.f.id).record(t, sign);
+            route(t.f).record(t, sign);
+            byCabin[t.travelClass.ordinal()].record(t, sign);
+            byMeal[t.meal.ordinal()].record(t, sign);
+        }
+
+        // Highest-earning entries, by one pass over the flights or routes (never the tickets)
+        // keeping the best n in a small heap
+        static List<Map.Entry<String, Tally>> top(Map<String, Tally> tallies, int n) {
+            PriorityQueue<Map.Entry<String, Tally>> best = new PriorityQueue<>(n + 1, Comparator.comparingLong(e -> e.getValue().revenue.sum()));
+            tallies.forEach((key, t) -> { // forEach, unlike entrySet(), does not allocate an entry per element
+                if(best.size() == n && t.revenue.sum() <= best.peek().getValue().revenue.sum()) return;
+                best.add(new AbstractMap.SimpleImmutableEntry<>(key, t));
+                if(best.size() > n) best.poll();
+            });
+            List<Map.Entry<String, Tally>> top = new ArrayList<>(best);
+            top.sort((a, b) -> Long.compare(b.getValue().revenue.sum(), a.getValue().revenue.sum()));
+            return top;
+        }
+    }
+
+    // Booking references: "PNR-" + node letter + base-36 sequence, e.g. PNR-A0001K. Each node
+    // (--node=A..Z) owns its own sequence, so ids are unique across nodes without coordination and
+    // within a node by a single atomic increment. Legacy numeric PNRs (PNR-4306) never collide with
+    // them. Sequence numbers are reserved in blocks whose end is persisted before the first is
+    // issued, so after a restart the sequence resumes past every id the node may have handed out,
+    // including cancelled and archived ones that no longer appear in the store.
+    static class PnrGenerator {
+        static final String PREFIX = "PNR-";
+        private static final char[] DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+        private static final int MIN_WIDTH = 5;
+        static final int BLOCK = 4096;
+
+        static volatile char node = 'A';
+        private static final AtomicLong sequence = new AtomicLong();
+        private static volatile long reserved; // highest sequence covered by the persisted mark
+
+        static String next() {
+            long seq = sequence.incrementAndGet();
+            if(seq > reserved) reserve(seq);
+            return encode(node, seq);
+        }
+
+        private static synchronized void reserve(long seq) {
+            if(seq <= reserved) return;
+            long mark = seq + BLOCK;
+            DatabaseManager.savePnrMark(node, mark);
+            reserved = mark;
+        }
+
+        static String encode(char node, long seq) {
+            char[] buf = new char[PREFIX.length() + 1 + 13];
+            int pos = buf.length;
+            do { buf[--pos] = DIGITS[(int)(seq % 36)]; seq /= 36; } while(seq > 0);
+            while(buf.length - pos < MIN_WIDTH) buf[--pos] = '0';
+            buf[--pos] = node;
+            for(int i = PREFIX.length() - 1; i >= 0; i--) buf[--pos] = PREFIX.charAt(i);
+            return new String(buf, pos, buf.length - pos);
+        }
+
+        // Sequence number of one of this node's PNRs, or -1 for anything else
+        static long decode(String pnr) {
+            int start = PREFIX.length() + 1;
+            if(pnr.length() <= start || !pnr.startsWith(PREFIX) || pnr.charAt(start - 1) != node) return -1;
+            long seq = 0;
+            for(int i = start; i < pnr.length(); i++) {
+                char c = pnr.charAt(i);
+                int d = c >= '0' && c <= '9' ? c - '0' : c >= 'A' && c <= 'Z' ? c - 'A' + 10 : -1;
+                if(d < 0) return -1;
+                seq = seq * 36 + d;
+            }
+            return seq;
+        }
+
+        // Moves the sequence past a PNR seen on load or replay
+        static void observe(String pnr) {
+            long seq = decode(pnr);
+            if(seq > 0) sequence.accumulateAndGet(seq, Math::max);
+        }
+
+        static void reset() { sequence.set(0); reserved = 0; }
+
+        // Resumes past the persisted mark; the next id issued reserves a fresh block
+        static void resume() {
+            sequence.accumulateAndGet(DatabaseManager.loadPnrMark(node), Math::max);
+            reserved = 0;
+        }
+
+        static char parseNode(String s) {
+            if(s.length() != 1 || !Character.isLetter(s.charAt(0))) throw new IllegalArgumentException("--node expects a single letter A-Z");
+            return Character.toUpperCase(s.charAt(0));
+        }
+    }
+
+    // Headless booking engine: every business rule lives here and reports back through
+    // Result objects, so the terminal menus, benchmarks and load tests all drive the same code.
+    static class BookingService {
+
+        static class Result<T> {
+            final boolean ok;
+            final String message;
+            final T value;
+            private Result(boolean ok, String message, T value) { this.ok = ok; this.message = message; this.value = value; }
+            static <T> Result<T> ok(String message, T value) { return new Result<>(true, message, value); }
+            static <T> Result<T> fail(String message) { return new Result<>(false, message, null); }
+        }
+
+        // A price as shown to the passenger; confirm() charges exactly this
+        static class Quote {
+            final FlightInstance fi;
+            final CabinClass cabin;
+            final MealType meal;
+            final long baseFare, total;
+            final long listPrice; // the flight's published price it was worked out from
+            Quote(FlightInstance fi, CabinClass cabin, MealType meal) {
+                this.fi = fi; this.cabin = cabin; this.meal = meal;
+                listPrice = fi.f.price;
+                baseFare = PricingEngine.fare(fi, cabin);
+                total = baseFare + meal.price;
+            }
+        }
+
+        static final String FARE_CHANGED = "FARE CHANGED. PLEASE CONFIRM THE NEW TOTAL";
+
+        // A seat claimed for one session until it is confirmed, released or HoldTimer expires it
+        static class SeatHold {
+            final FlightInstance fi;
+            final Flight f;
+            final CabinClass cabin;
+            final String seat;
+            final int seatIndex;
+            final long expires; // epoch millis
+            boolean active = true;
+            SeatHold prev, next; // HoldTimer bucket links, guarded by the bucket
+            boolean queued;
+            SeatHold(FlightInstance fi, CabinClass cabin, int seatIndex) {
+                this.fi = fi; this.f = fi.f; this.cabin = cabin; this.seatIndex = seatIndex; this.seat = f.layout.seatCode(seatIndex);
+                this.expires = System.currentTimeMillis() + HoldTimer.ttlMillis;
+            }
+        }
+
+        public static Result<User> login(String username, String password) {
+            User u = DataStore.users.get(username);
+            if(u == null) return Result.fail("USER NOT FOUND");
+            if(!u.pass.equals(password)) return Result.fail("ACCESS DENIED: INCORRECT PASSWORD");
+            return Result.ok("ACCESS GRANTED. WELCOME " + u.name, u);
+        }
+
+        public static Result<User> register(String username, String name, String password) {
+            if(username.isEmpty() || username.contains(",") || name.contains(",") || password.contains(",")) return Result.fail("INVALID DETAILS");
+            User u = new User(username, password, name, false);
+            if(DataStore.users.putIfAbsent(username, u) != null) return Result.fail("USERNAME TAKEN");
+            DatabaseManager.saveUser(u); // Save to CSV
+            return Result.ok("ACCOUNT CREATED SUCCESSFULLY", u);
+        }
+
+        // The schedule: flights whose route matches, regardless of date
+        public static List<Flight> search(String query) {
+            if(query.isEmpty()) return DataStore.flights;
+            return DataStore.routes.search(query);
+        }
+
+        // Dated departures of the matching flights between two dates, inclusive
+        public static List<FlightInstance> departures(String query, LocalDate from, LocalDate to) {
+            long t0 = Metrics.start();
+            try { return InventoryStore.departures(search(query), from, to); } finally { Metrics.stop(Metrics.Op.SEARCH, t0); }
+        }
+
+        // A flight's departure on the given date, or its next one when date is null
+        public static FlightInstance departure(Flight f, LocalDate date) {
+            return date == null ? InventoryStore.next(f) : InventoryStore.instance(f, date);
+        }
+
+        // The next departure of every scheduled flight
+        public static List<FlightInstance> upcoming() {
+            List<FlightInstance> out = new ArrayList<>();
+            for(Flight f : DataStore.flights) out.add(InventoryStore.next(f));
+            return out;
+        }
+
+        public static List<ItinerarySearch.Itinerary> connections(String org, String dst, LocalDate date, int maxStops, ItinerarySearch.Objective objective, int limit) {
+            return ItinerarySearch.search(org, dst, date, maxStops, objective, limit);
+        }
+
+        public static Quote quote(FlightInstance fi, CabinClass cabin, MealType meal) { return new Quote(fi, cabin, meal); }
+
+        private static String closed(FlightInstance fi) {
+            if(!InventoryStore.inWindow(fi.date)) return "DATE OUTSIDE BOOKING WINDOW";
+            if(InventoryStore.departed(fi)) return "FLIGHT HAS DEPARTED";
+            return null;
+        }
+
+        // Parses a seat code like "4A", checks it against the cabin and claims it
+        public static Result<SeatHold> holdSeat(FlightInstance fi, CabinClass cabin, String seat) {
+            String closed = closed(fi);
+            if(closed != null) return Result.fail(closed);
+            int idx = fi.f.layout.seatIndex(seat);
+            if(idx < 0) return Result.fail("Invalid Format.");
+            if(fi.f.layout.cabinOf(idx) != cabin) return Result.fail("Restricted Seat Selection.");
+            if(!DataStore.holdSeat(fi, idx)) return Result.fail("Seat Unavailable.");
+            return Result.ok("SEAT " + seat + " HELD", HoldTimer.schedule(new SeatHold(fi, cabin, idx)));
+        }
+
+        // Claims the first free seat in the cabin, retrying if another session takes it first
+        public static Result<SeatHold> holdNextFree(FlightInstance fi, CabinClass cabin) {
+            String closed = closed(fi);
+            if(closed != null) return Result.fail(closed);
+            int idx;
+            while((idx = fi.seats.nextFree(cabin)) >= 0) {
+                if(DataStore.holdSeat(fi, idx)) {
+                    SeatHold hold = HoldTimer.schedule(new SeatHold(fi, cabin, idx));
+                    return Result.ok("SEAT " + hold.seat + " HELD", hold);
+                }
+            }
+            return Result.fail("NO SEATS LEFT IN " + cabin.label.toUpperCase());
+        }
+
+        // Gives the seat back; returns false if the hold was already confirmed, released or expired
+        public static boolean releaseHold(SeatHold hold) {
+            synchronized(hold) {
+                if(!hold.active) return false;
+                hold.active = false;
+            }
+            HoldTimer.cancel(hold);
+            DataStore.releaseHeldSeat(hold.fi, hold.seatIndex);
+            return true;
+        }
+
+        // Pays the quoted total for a held seat and issues the ticket; the hold is released if payment
+        // fails. Demand may move the fare while the seat is held, but the passenger pays what they were
+        // shown. Only a new published price voids the quote: that fails with FARE_CHANGED and keeps the
+        // hold, so a fresh quote can be shown and confirmed.
+        public static Result<Ticket> confirm(User u, SeatHold hold, Quote q) {
+            long t0 = Metrics.start();
+            try { return pay(u, hold, q); } finally { Metrics.stop(Metrics.Op.CONFIRM, t0); }
+        }
+
+        private static Result<Ticket> pay(User u, SeatHold hold, Quote q) {
+            if(q.fi != hold.fi || q.cabin != hold.cabin) return Result.fail("QUOTE IS FOR ANOTHER SEAT");
+            synchronized(hold) {
+                if(!hold.active) return Result.fail("SEAT HOLD EXPIRED");
+                if(q.listPrice != hold.f.price) return Result.fail(FARE_CHANGED);
+                hold.active = false;
+            }
+            HoldTimer.cancel(hold);
+            MealType meal = q.meal;
+            String pnr = PnrGenerator.next(); // issued first so the ledger entry names the booking
+            if(!u.tryDebit(q.total, pnr)) { // Updates DB
+                DataStore.releaseHeldSeat(hold.fi, hold.seatIndex);
+                return Result.fail("INSUFFICIENT WALLET BALANCE");
+            }
+            hold.fi.seats.unhold(hold.seatIndex);
+
+            Ticket t = new Ticket(hold.f, hold.fi.date, hold.seat, u.name, u.username, hold.cabin, meal, q.total, pnr);
+            while(!DataStore.addTicket(t)) t.bookingId = PnrGenerator.next(); // only if bookings.csv was edited behind our back
+            DatabaseManager.saveBooking(t); // Save to DB
+            return Result.ok("BOOKING CONFIRMED! PNR: " + t.bookingId, t);
+        }
+
+        public static List<Ticket> myTickets(User u) {
+            return new ArrayList<>(DataStore.ticketsOf(u.username));
+        }
+
+        public static Result<Ticket> cancel(User u, Ticket t) {
+            if(!u.username.equals(t.username)) return Result.fail("NOT YOUR BOOKING");
+            if(!DataStore.removeTicket(t)) return Result.fail("BOOKING NO LONGER ACTIVE"); // Already cancelled from another session
+            u.credit(t.paidPrice, DatabaseManager.WalletLedger.Kind.REFUND, t.bookingId); // Updates DB
+            DatabaseManager.deleteBooking(t.bookingId); // Update DB
+            DataStore.releaseSeat(t); // only once the delete is published, so a rebook of the seat follows it
+            return Result.ok("REFUND SUCCESSFUL", t);
+        }
+
+        public static Result<Long> topUp(User u, long amount) {
+            if(amount <= 0) return Result.fail("INVALID AMOUNT");
+            u.credit(amount, DatabaseManager.WalletLedger.Kind.CREDIT, "TOPUP");
+            return Result.ok("WALLET UPDATED", u.wallet);
+        }
+    }
+
+    // Group and charter loads from a file (--import=<file> or the admin console). Rows are parsed
+    // and validated in parallel on the fork-join pool, then applied batchSize at a time: a batch
+    // claims all its seats and debits all its wallets or none of them, and is persisted with one
+    // append and one sync. Flight files use the flights.csv columns; booking files use
+    // BOOKINGS_HEADER, with the seat left blank (or ANY) for the next free one in the cabin.
+    static class BulkImporter {
+        static final String BOOKINGS_HEADER = "username,flightId,date,class,seat,meal";
+        static int batchSize = 1000;
+        private static final int SPLIT = 2048; // rows per fork-join leaf
+        private static final int MAX_ERRORS = 10;
+
+        static class Report {
+            int rows, invalid, applied, batches, rejected;
+            long nanos;
+            final List<String> errors = new ArrayList<>(); // the first MAX_ERRORS only
+
+            void error(String message) {
+                if(errors.size() < MAX_ERRORS) errors.add(message);
+            }
+        }
+
+        private static final class Booking {
+            final int line;
+            final User user;
+            final Flight f;
+            final LocalDate date;
+            final CabinClass cabin;
+            final int seat; // -1 for the next free one
+            final MealType meal;
+            Booking(int line, User user, Flight f, LocalDate date, CabinClass cabin, int seat, MealType meal) {
+                this.line = line; this.user = user; this.f = f; this.date = date; this.cabin = cabin; this.seat = seat; this.meal = meal;
+            }
+        }
+
+        // Parses lines[lo, hi) into out[]: a Flight or Booking, or the error message for that line
+        private static final class Validate extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            final List<String> lines;
+            final Object[] out;
+            final boolean flights;
+            final int lo, hi;
+            final Map<String, LocalDate> dates = new HashMap<>(); // a load repeats a handful of dates; parsing each is slow
+            Validate(List<String> lines, Object[] out, boolean flights, int lo, int hi) { this.lines = lines; this.out = out; this.flights = flights; this.lo = lo; this.hi = hi; }
+
+            protected void compute() {
+                if(hi - lo > SPLIT) {
+                    int mid = (lo + hi) >>> 1;
+                    invokeAll(new Validate(lines, out, flights, lo, mid), new Validate(lines, out, flights, mid, hi));
+                    return;
+                }
+                for(int i=lo; i<hi; i++) {
+                    String[] d = lines.get(i).split(",", -1);
+                    try {
+                        out[i] = flights ? flight(d) : booking(i + 2, d, dates);
+                    } catch (RuntimeException e) { out[i] = e.getMessage() == null ? e.toString() : e.getMessage(); }
+                    if(out[i] instanceof String) out[i] = "line " + (i + 2) + ": " + out[i]; // after the header, 1-based
+                }
+            }
+        }
+
+        private static Object flight(String[] d) {
+            if(d.length < 5) return "expected at least 5 fields, found " + d.length;
+            Flight f = DatabaseManager.parseFlight(d);
+            if(f.id.isEmpty() || f.org.isEmpty() || f.dst.isEmpty()) return "missing flight id or airport";
+            if(f.org.equals(f.dst)) return "origin and destination are the same";
+            if(DataStore.findFlight(f.id) != null) return "flight " + f.id + " already exists";
+            if(!(f.price > 0)) return "price must be positive";
+            try { java.time.LocalTime.parse(f.time); } catch (java.time.DateTimeException e) { return "time " + f.time + " is not HH:MM"; }
+            return f;
+        }
+
+        private static Object booking(int line, String[] d, Map<String, LocalDate> dates) {
+            if(d.length != 6) return "expected 6 fields, found " + d.length;
+            User u = DataStore.users.get(d[0]);
+            if(u == null) return "unknown user " + d[0];
+            Flight f = DataStore.findFlight(d[1].toUpperCase());
+            if(f == null) return "unknown flight " + d[1];
+            LocalDate date = dates.computeIfAbsent(d[2], LocalDate::parse);
+            if(!InventoryStore.inWindow(date)) return "date " + d[2] + " is outside the booking window";
+            CabinClass cabin = option(CabinClass.class, d[3]);
+            String code = d[4].trim().toUpperCase();
+            int seat = -1;
+            if(!code.isEmpty() && !code.equals("ANY")) {
+                seat = f.layout.seatIndex(code);
+                if(seat < 0 || f.layout.cabinOf(seat) != cabin) return "seat " + code + " is not in " + cabin.label;
+            }
+            MealType meal = d[5].trim().isEmpty() ? MealType.NONE : option(MealType.class, d[5]);
+            return new Booking(line, u, f, InventoryStore.date(date.toEpochDay()), cabin, seat, meal);
+        }
+
+        private static <E extends Enum<E>> E option(Class<E> type, String s) {
+            try {
+                return Enum.valueOf(type, s.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown " + (type == MealType.class ? "meal " : "class ") + s);
+            }
+        }
+
+        static Report importFile(String file) throws IOException {
+            List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+            Report r = new Report();
+            long t0 = System.nanoTime();
+            String header = lines.isEmpty() ? "" : lines.get(0).replace(" ", "").toLowerCase();
+            boolean flights = header.startsWith("id,");
+            if(!flights && !header.equals(BOOKINGS_HEADER.toLowerCase())) {
+                r.error("unrecognised header: expected flights.csv columns or " + BOOKINGS_HEADER);
+                return r;
+            }
+
+            List<String> body = lines.subList(1, lines.size());
+            Object[] parsed = new Object[body.size()];
+            ForkJoinPool.commonPool().invoke(new Validate(body, parsed, flights, 0, body.size()));
+
+            List<Object> batch = new ArrayList<>(batchSize);
+            for(int i=0; i<parsed.length; i++) {
+                if(body.get(i).trim().isEmpty()) continue;
+                r.rows++;
+                if(parsed[i] instanceof String) {
+                    r.invalid++;
+                    r.error((String) parsed[i]);
+                    continue;
+                }
+                batch.add(parsed[i]);
+                if(batch.size() == batchSize) apply(batch, flights, r);
+            }
+            if(!batch.isEmpty()) apply(batch, flights, r);
+            r.nanos = System.nanoTime() - t0;
+            return r;
+        }
+
+        private static void apply(List<Object> batch, boolean flights, Report r) {
+            r.batches++;
+            String failure = flights ? applyFlights(batch, r) : applyBookings(batch, r);
+            if(failure != null) {
+                r.rejected++;
+                r.error("batch " + r.batches + " rejected (" + batch.size() + " rows): " + failure);
+            }
+            batch.clear();
+        }
+
+        private static String applyFlights(List<Object> batch, Report r) {
+            Map<String, Flight> fresh = new LinkedHashMap<>();
+            for(Object o : batch) {
+                Flight f = (Flight) o;
+                if(DataStore.findFlight(f.id) != null || fresh.putIfAbsent(f.id, f) != null) return "flight " + f.id + " appears twice";
+            }
+            List<Flight> added = new ArrayList<>(fresh.values());
+            DataStore.addFlights(added);
+            DatabaseManager.saveBatch(added, Collections.<Ticket>emptyList(), Collections.<User>emptyList());
+            r.applied += added.size();
+            return null;
+        }
+
+        // Seats first, then wallets; on any failure everything this batch took is given back
+        private static String applyBookings(List<Object> batch, Report r) {
+            List<Ticket> issued = new ArrayList<>(batch.size());
+            List<FlightInstance> seatsOn = new ArrayList<>(batch.size());
+            Map<User, Long> due = new LinkedHashMap<>();
+            String failure = null;
+            for(Object o : batch) {
+                Booking b = (Booking) o;
+                FlightInstance fi = InventoryStore.instance(b.f, b.date);
+                int seat = b.seat;
+                if(seat < 0) {
+                    while((seat = fi.seats.nextFree(b.cabin)) >= 0 && !DataStore.reserveSeat(fi, seat)) { }
+                } else if(!DataStore.reserveSeat(fi, seat)) seat = -1;
+                if(seat < 0) { failure = "line " + b.line + ": no seat for " + b.f.id + " on " + b.date; break; }
+                long price = BookingService.quote(fi, b.cabin, b.meal).total;
+                seatsOn.add(fi);
+                issued.add(new Ticket(b.f, b.date, b.f.layout.seatCode(seat), b.user.name, b.user.username, b.cabin, b.meal, price, null));
+                due.merge(b.user, price, Long::sum);
+            }
+            List<User> debited = new ArrayList<>(due.size());
+            if(failure == null) {
+                for(Map.Entry<User, Long> e : due.entrySet()) {
+                    if(!e.getKey().withdraw(e.getValue())) { failure = "insufficient wallet balance for " + e.getKey().username; break; }
+                    debited.add(e.getKey());
+                }
+            }
+            if(failure != null) {
+                for(User u : debited) u.deposit(due.get(u));
+                for(int i=0; i<issued.size(); i++) DataStore.releaseSeat(seatsOn.get(i), issued.get(i).f.layout.seatIndex(issued.get(i).seat));
+                return failure;
+            }
+            for(Ticket t : issued) {
+                do t.bookingId = PnrGenerator.next(); while(!DataStore.addTicket(t));
+            }
+            // Balances reach disk through the ledger, and before the tickets do, as a single booking's
+            // debit does: a crash in between leaves a charge to refund, never a booking nobody paid for
+            for(Map.Entry<User, Long> e : due.entrySet()) e.getKey().recordDebit(e.getValue(), "IMPORT");
+            DatabaseManager.saveBatch(Collections.<Flight>emptyList(), issued, Collections.<User>emptyList());
+            r.applied += issued.size();
+            return null;
+        }
+
+        static void print(Report r) {
+            System.out.printf("   Rows %,d  imported %,d  invalid %,d  batches %,d (%,d rejected)  %.0f rows/s%n",
+                r.rows, r.applied, r.invalid, r.batches, r.rejected, r.rows * 1e9 / Math.max(1, r.nanos));
+            for(String e : r.errors) System.out.println(RED + "   " + e + RESET);
+        }
+    }
+
+    // Departure-day manifests for many flights at once (--export-manifests=<date> or the admin
+    // console): one CSV per flight under <dir>/<date>/, flights spread over the fork-join pool.
+    // Each file is streamed from the flight's manifest index through its own buffered writer,
+    // so nothing is collected in memory first. Past dates are read from the archive.
+    static class ManifestExport {
+        static final String HEADER = "seat,pnr,passenger,username,class,meal";
+
+        static class Report {
+            final LongAdder files = new LongAdder(), passengers = new LongAdder(), bytes = new LongAdder();
+            final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+            Path dir;
+            long nanos;
+        }
+
+        static Report export(LocalDate date, Collection<Flight> flights, String dir) {
+            Report r = new Report();
+            long t0 = System.nanoTime();
+            r.dir = Paths.get(dir, date.toString());
+            Map<String, List<Ticket>> archived = null;
+            if(date.toEpochDay() < InventoryStore.today()) {
+                archived = new HashMap<>();
+                for(Ticket t : InventoryStore.archived(date)) archived.computeIfAbsent(t.f.id, k -> new ArrayList<>()).add(t);
+                for(List<Ticket> l : archived.values()) l.sort(Comparator.comparingInt(t -> t.f.layout.seatIndex(t.seat)));
+            }
+            try {
+                Files.createDirectories(r.dir);
+            } catch (IOException e) {
+                r.errors.add("cannot create " + r.dir + ": " + e.getMessage());
+                return r;
+            }
+            Map<String, List<Ticket>> past = archived;
+            new ArrayList<>(flights).parallelStream().forEach(f -> {
+                Collection<Ticket> tickets = past != null ? past.getOrDefault(f.id, Collections.<Ticket>emptyList()) : DataStore.manifest(f.id, date, date);
+                write(r, r.dir.resolve(f.id + ".csv"), tickets);
+            });
+            r.nanos = System.nanoTime() - t0;
+            return r;
+        }
+
+        private static void write(Report r, Path file, Collection<Ticket> tickets) {
+            long rows = 0;
+            try (Writer w = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+                w.write(HEADER);
+                w.write('\n');
+                for(Ticket t : tickets) {
+                    w.write(t.seat); w.write(',');
+                    w.write(t.bookingId); w.write(',');
+                    w.write(t.owner); w.write(',');
+                    w.write(t.username == null ? "" : t.username); w.write(',');
+                    w.write(t.travelClass.name()); w.write(',');
+                    w.write(t.meal.name()); w.write('\n');
+                    rows++;
+                }
+            } catch (IOException e) {
+                r.errors.add(file.getFileName() + ": " + e.getMessage());
+                return;
+            }
+            r.files.increment();
+            r.passengers.add(rows);
+            r.bytes.add(file.toFile().length());
+        }
+
+        static void print(Report r) {
+            System.out.printf("   %,d manifests, %,d passengers, %,d KB to %s in %.2f s%n",
+                r.files.sum(), r.passengers.sum(), r.bytes.sum() / 1024, r.dir, r.nanos / 1e9);
+            for(String e : r.errors) System.out.println(RED + "   " + e + RESET);
+        }
+    }
+
+    // Expires seat holds after ttlMillis. A hashed timer wheel: SLOTS buckets of TICK_MS each,
+    // a hold is linked into the bucket its deadline falls in and one daemon thread empties a
+    // bucket per tick. Scheduling, cancelling and expiring are O(1) per hold however many are
+    // outstanding, and no thread or task is created per hold.
+    static class HoldTimer {
+        static long ttlMillis = 10 * 60_000L;
+        static final long TICK_MS = 250;
+        private static final int SLOTS = 4096; // one turn of the wheel is ~17 minutes, longer than a usual TTL
+
+        private static final class Bucket { BookingService.SeatHold head; }
+        private static final Bucket[] wheel = new Bucket[SLOTS];
+        static { for(int i=0; i<SLOTS; i++) wheel[i] = new Bucket(); }
+
+        static final LongAdder expired = new LongAdder();
+        private static volatile ScheduledExecutorService sweeper;
+        private static long nextTick; // first tick not yet swept; sweeper thread only
+
+        private static Bucket bucket(BookingService.SeatHold hold) { return wheel[(int) (hold.expires / TICK_MS) & (SLOTS - 1)]; }
+
+        static BookingService.SeatHold schedule(BookingService.SeatHold hold) {
+            Bucket b = bucket(hold);
+            synchronized(b) {
+                hold.next = b.head;
+                if(b.head != null) b.head.prev = hold;
+                b.head = hold;
+                hold.queued = true;
+            }
+            if(sweeper == null) start();
+            return hold;
+        }
+
+        // Unlinks a hold that was confirmed or released before its deadline
+        static void cancel(BookingService.SeatHold hold) {
+            Bucket b = bucket(hold);
+            synchronized(b) { if(hold.queued) unlink(b, hold); }
+        }
+
+        private static void unlink(Bucket b, BookingService.SeatHold h) {
+            if(h.prev != null) h.prev.next = h.next; else b.head = h.next;
+            if(h.next != null) h.next.prev = h.prev;
+            h.prev = h.next = null;
+            h.queued = false;
+        }
+
+        private static synchronized void start() {
+            if(sweeper != null) return;
+            nextTick = System.currentTimeMillis() / TICK_MS;
+            ScheduledExecutorService s = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "seat-hold-timer");
+                t.setDaemon(true);
+                return t;
+            });
+            s.scheduleAtFixedRate(HoldTimer::advance, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+            sweeper = s;
+        }
+
+        // Sweeps every tick that has fully passed, catching up if the thread was delayed
+        private static void advance() {
+            long now = System.currentTimeMillis();
+            for(; nextTick < now / TICK_MS; nextTick++) {
+                Bucket b = wheel[(int) nextTick & (SLOTS - 1)];
+                List<BookingService.SeatHold> due = new ArrayList<>();
+                synchronized(b) {
+                    for(BookingService.SeatHold h = b.head, next; h != null; h = next) {
+                        next = h.next;
+                        if(h.expires / TICK_MS <= nextTick) { // others are due on a later turn of the wheel
+                            unlink(b, h);
+                            due.add(h);
+                        }
+                    }
+                }
+                for(BookingService.SeatHold h : due) if(BookingService.releaseHold(h)) expired.increment();
+            }
+        }
+    }
+
+    // Multi-session mode (--server[=port]): agents connect over a loopback socket and each
+    // connection runs as its own Session on a virtual thread (a pooled platform thread on JDKs
+    // without them). Sessions carry their own user, so DataStore.currentUser is console-only.
+    static class BookingServer {
+        static final int DEFAULT_PORT = 7007;
+
+        static ServerSocket start(int port) throws IOException {
+            ServerSocket server = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+            ExecutorService sessions = sessionExecutor();
+            Thread acceptor = new Thread(() -> {
+                while(!server.isClosed()) {
+                    try { sessions.execute(new Session(server.accept())); }
+                    catch (IOException e) { if(!server.isClosed()) System.out.println(RED + "Accept Error: " + e.getMessage() + RESET); }
+                }
+                sessions.shutdown();
+            }, "booking-server-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            return server;
+        }
+
+        static ExecutorService sessionExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool();
+            }
+        }
+    }
+
+    // Read-only node (--replica[=PORT]): builds its store from the primary's change stream
+    // (--publish-changes), follows the file applying each record as a journal replay would, and
+    // serves the session protocol without its writes. Any number can follow one data directory.
+    // A primary restart moves a new stream over the old file; the follower sees a different file
+    // key and rebuilds from it.
+    static class Replica {
+        static final int DEFAULT_PORT = 7008;
+        static int pollMillis = 2;
+        static volatile boolean active = false;
+        static volatile long seq = 0, lagNanos = 0; // last record applied, and how long after it was published
+        private static final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        private static final ByteArrayOutputStream partial = new ByteArrayOutputStream(); // a record split across reads
+        private static volatile FileChannel ch;
+        private static Object fileKey;
+        private static volatile long position; // end of the last record applied
+        private static long readTo; // end of what has been read
+
+        // ReplicaStorage.replay: the store was just emptied, so the stream is read from its start
+        static void load(java.util.function.Consumer<String[]> apply) {
+            closeChannel();
+            Path p = Paths.get(DatabaseManager.changesFile());
+            try {
+                fileKey = fileKey(p);
+                ch = FileChannel.open(p, StandardOpenOption.READ);
+                drain(apply, false);
+            } catch (NoSuchFileException e) {
+                // nothing published yet; follow() picks the file up when it appears
+            } catch (IOException e) { DatabaseManager.ioError("Replica Load", e); }
+        }
+
+        static void follow() {
+            Thread t = new Thread(() -> {
+                Path p = Paths.get(DatabaseManager.changesFile());
+                while(true) {
+                    try {
+                        boolean read;
+                        if(replaced(p)) {
+                            DataStore.refreshData();
+                            read = true;
+                        } else read = ch != null && drain(DataStore::apply, true);
+                        if(!read) Thread.sleep(pollMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        DatabaseManager.ioError("Replica Follow", e);
+                        try { Thread.sleep(1000); } catch (InterruptedException ie) { return; }
+                    }
+                }
+            }, "replica-follow");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        // "seq=N lag=T behind=B": the last record applied, how long after publishing it was applied,
+        // and the bytes of stream not applied yet
+        static String status() {
+            long behind = 0;
+            try { FileChannel c = ch; if(c != null) behind = Math.max(0, c.size() - position); } catch (IOException e) { }
+            return "seq=" + seq + " lag=" + Bench.duration(lagNanos).replace(" ", "") + " behind=" + behind + "B";
+        }
+
+        // Applies every complete record past what has been read; a torn last line waits for the rest.
+        // False if there was nothing new.
+        private static boolean drain(java.util.function.Consumer<String[]> apply, boolean live) throws IOException {
+            boolean any = false;
+            byte[] a = buf.array();
+            int n;
+            while((n = ch.read(ByteBuffer.wrap(a), readTo)) > 0) {
+                int from = 0;
+                for(int i = 0; i < n; i++) {
+                    if(a[i] != '\n') continue;
+                    String record;
+                    if(partial.size() == 0) record = new String(a, from, i - from, StandardCharsets.UTF_8);
+                    else {
+                        partial.write(a, from, i - from);
+                        record = new String(partial.toByteArray(), StandardCharsets.UTF_8);
+                        partial.reset();
+                    }
+                    apply(record, apply, live);
+                    from = i + 1;
+                    position = readTo + from;
+                }
+                partial.write(a, from, n - from);
+                readTo += n;
+                any = true;
+            }
+            return any;
+        }
+
+        private static void apply(String record, java.util.function.Consumer<String[]> apply, boolean live) {
+            String[] r = record.split(",", -1);
+            if(r.length < 3) return;
+            try {
+                long s = Long.parseLong(r[0]), at = Long.parseLong(r[1]);
+                apply.accept(Arrays.copyOfRange(r, 2, r.length));
+                seq = s;
+                if(live) { // the base records were published whenever the primary started
+                    lagNanos = Math.max(0, DatabaseManager.ChangeLog.micros() - at) * 1000;
+                    Metrics.record(Metrics.Op.REPLICATION_LAG, lagNanos);
+                }
+            } catch (NumberFormatException e) { /* not a change record */ }
+        }
+
+        private static boolean replaced(Path p) {
+            Object key;
+            try { key = fileKey(p); } catch (IOException e) { return false; } // gone: keep serving what we have
+            return ch == null || (key != null && !key.equals(fileKey));
+        }
+
+        private static Object fileKey(Path p) throws IOException {
+            return Files.readAttributes(p, java.nio.file.attribute.BasicFileAttributes.class).fileKey();
+        }
+
+        private static void closeChannel() {
+            if(ch != null) try { ch.close(); } catch (IOException e) { }
+            ch = null;
+            fileKey = null;
+            position = readTo = 0;
+            partial.reset();
+            seq = lagNanos = 0;
+        }
+    }
+
+    // One connected agent. Line protocol, one reply line per command ("OK ..." or "ERR ..."):
+    //   LOGIN user pass | REGISTER user pass full name | SEARCH [code] [from] [to] | ROUTE org dst [stops] [CHEAPEST|FASTEST] [date]
+    //   WALLET | TOPUP amount | METRICS (admin) | LAG (replica: seq=N lag=T behind=B)
+    //   HOLD flight CLASS seat|ANY [date] | RELEASE | CONFIRM MEAL | BOOK flight CLASS seat MEAL [date]
+    // Dates are YYYY-MM-DD; without one, SEARCH and ROUTE use today and HOLD/BOOK the next departure.
+    //   TRIPS | CANCEL pnr | LOGOUT | QUIT
+    // On a replica the commands that change anything answer "ERR READ ONLY REPLICA".
+    static class Session implements Runnable {
+        private static final Set<String> WRITES = new HashSet<>(Arrays.asList("REGISTER", "TOPUP", "HOLD", "RELEASE", "CONFIRM", "BOOK", "CANCEL"));
+        private final Socket socket;
+        User user;
+        BookingService.SeatHold hold;
+
+        Session(Socket socket) { this.socket = socket; }
+
+        public void run() {
+            try (Socket s = socket;
+                 BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                 PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)))) {
+                String line;
+                while((line = in.readLine()) != null) {
+                    String reply = handle(line.trim());
+                    if(reply == null) break;
+                    out.println(reply);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Client went away; nothing to report back to
+            } finally {
+                if(hold != null) BookingService.releaseHold(hold);
+            }
+        }
+
+        // Returns the reply line, or null when the session should end
+        String handle(String line) {
+            String[] a = line.split("\\s+");
+            String cmd = a[0].toUpperCase();
+            if(Replica.active && WRITES.contains(cmd)) return "ERR READ ONLY REPLICA";
+            try {
+                switch(cmd) {
+                    case "QUIT": return null;
+                    case "LAG": return Replica.active ? "OK " + Replica.status() : "ERR NOT A REPLICA";
+                    case "LOGIN": {
+                        BookingService.Result<User> res = BookingService.login(a[1], a[2]);
+                        if(res.ok) user = res.value;
+                        return reply(res);
+                    }
+                    case "REGISTER": {
+                        String name = String.join(" ", Arrays.copyOfRange(a, 3, a.length));
+                        return reply(BookingService.register(a[1], name, a[2]));
+                    }
+                    case "ROUTE": {
+                        int stops = a.length > 3 ? Integer.parseInt(a[3]) : 2;
+                        ItinerarySearch.Objective o = a.length > 4 ? ItinerarySearch.Objective.valueOf(a[4].toUpperCase()) : ItinerarySearch.Objective.CHEAPEST;
+                        LocalDate date = a.length > 5 ? LocalDate.parse(a[5]) : LocalDate.now();
+                        List<ItinerarySearch.Itinerary> found = BookingService.connections(a[1].toUpperCase(), a[2].toUpperCase(), date, stops, o, 5);
+                        StringBuilder sb = new StringBuilder("OK ").append(found.size());
+                        for(ItinerarySearch.Itinerary it : found) {
+                            sb.append(" | ").append(Money.format(it.price)).append(' ').append(it.elapsed).append("m");
+                            for(int l = 0; l < it.legs.size(); l++) sb.append(' ').append(it.legs.get(l).id).append('@').append(it.leg(l).date);
+                        }
+                        return sb.toString();
+                    }
+                    case "SEARCH": {
+                        LocalDate from = a.length > 2 ? LocalDate.parse(a[2]) : LocalDate.now(), to = a.length > 3 ? LocalDate.parse(a[3]) : from;
+                        List<FlightInstance> found = BookingService.departures(a.length > 1 ? a[1].toUpperCase() : "", from, to);
+                        StringBuilder sb = new StringBuilder("OK ").append(found.size());
+                        for(FlightInstance fi : found) sb.append(" | ").append(fi.f.id).append(' ').append(fi.f.org).append(' ').append(fi.f.dst).append(' ').append(fi.date).append(' ').append(fi.f.time).append(' ').append(Money.format(PricingEngine.fare(fi, CabinClass.ECONOMY)));
+                        return sb.toString();
+                    }
+                }
+
+                if(user == null) return "ERR LOGIN REQUIRED";
+                switch(cmd) {
+                    case "WALLET": return "OK " + Money.format(user.wallet);
+                    case "METRICS": return user.isAdmin ? "OK " + String.join(" | ", Metrics.lines()).replaceAll(" +", " ") : "ERR ADMIN ONLY";
+                    case "TOPUP": return reply(BookingService.topUp(user, Money.parse(a[1])));
+                    case "HOLD": {
+                        Flight f = DataStore.findFlight(a[1].toUpperCase());
+                        if(f == null) return "ERR FLIGHT NOT FOUND";
+                        if(hold != null) BookingService.releaseHold(hold);
+                        CabinClass cabin = CabinClass.valueOf(a[2].toUpperCase());
+                        FlightInstance fi = BookingService.departure(f, a.length > 4 ? LocalDate.parse(a[4]) : null);
+                        BookingService.Result<BookingService.SeatHold> res = a.length < 4 || a[3].equalsIgnoreCase("ANY")
+                            ? BookingService.holdNextFree(fi, cabin) : BookingService.holdSeat(fi, cabin, a[3].toUpperCase());
+                        hold = res.value;
+                        return reply(res);
+                    }
+                    case "RELEASE":
+                        if(hold == null) return "ERR NO SEAT HELD";
+                        BookingService.releaseHold(hold);
+                        hold = null;
+                        return "OK SEAT RELEASED";
+                    case "CONFIRM": {
+                        if(hold == null) return "ERR NO SEAT HELD";
+                        BookingService.Result<Ticket> res = BookingService.confirm(user, hold, BookingService.quote(hold.fi, hold.cabin, MealType.valueOf(a[1].toUpperCase())));
+                        if(!res.ok && res.message.equals(BookingService.FARE_CHANGED)) return "ERR " + res.message; // still held
+                        hold = null;
+                        return res.ok ? "OK " + res.value.bookingId + " " + Money.format(res.value.paidPrice) : "ERR " + res.message;
+                    }
+                    case "BOOK": {
+                        if(a.length < 5) return "ERR MISSING ARGUMENTS"; // before anything is held
+                        String held = handle("HOLD " + a[1] + " " + a[2] + " " + a[3] + (a.length > 5 ? " " + a[5] : ""));
+                        return held.startsWith("OK") ? handle("CONFIRM " + a[4]) : held;
+                    }
+                    case "TRIPS": {
+                        List<Ticket> mine = BookingService.myTickets(user);
+                        StringBuilder sb = new StringBuilder("OK ").append(mine.size());
+                        for(Ticket t : mine) sb.append(" | ").append(t.bookingId).append(' ').append(t.f.id).append(' ').append(t.date).append(' ').append(t.seat).append(' ').append(t.travelClass).append(' ').append(Money.format(t.paidPrice));
+                        return sb.toString();
+                    }
+                    case "CANCEL": {
+                        Ticket t = DataStore.tickets.get(a[1].toUpperCase());
+                        if(t == null) return "ERR BOOKING NOT FOUND";
+                        return reply(BookingService.cancel(user, t));
+                    }
+                    case "LOGOUT":
+                        if(hold != null) BookingService.releaseHold(hold);
+                        hold = null;
+                        user = null;
+                        return "OK LOGGED OUT";
+                    default: return "ERR UNKNOWN COMMAND " + cmd;
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                return "ERR MISSING ARGUMENTS";
+            } catch (IllegalArgumentException | java.time.DateTimeException e) {
+                return "ERR INVALID ARGUMENT";
+            }
+        }
+
+        private static String reply(BookingService.Result<?> res) { return (res.ok ? "OK " : "ERR ") + res.message; }
+    }
+
+    // Interactive output is composed in one buffer and written when the session next waits for input,
+    // so each screen reaches the terminal as a single write instead of one per print call
+    static class Screen {
+        static boolean fast = false; // --fast: no splash or progress delays
+        static PrintStream out = System.out;
+
+        static void install() {
+            PrintStream raw = System.out;
+            String enc = System.getProperty("stdout.encoding", System.getProperty("sun.stdout.encoding", java.nio.charset.Charset.defaultCharset().name()));
+            try {
+                out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false, enc);
+            } catch (UnsupportedEncodingException e) {
+                out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+            }
+            raw.flush();
+            System.setOut(out);
+            System.setIn(new FilterInputStream(System.in) {
+                @Override public int read() throws IOException { out.flush(); return super.read(); }
+                @Override public int read(byte[] b, int off, int len) throws IOException { out.flush(); return super.read(b, off, len); }
+            });
+            Runtime.getRuntime().addShutdownHook(new Thread(out::flush));
+        }
+
+        // Artificial delays are only for show; flush first so the animation frame is visible during the wait
+        static void sleep(long ms) {
+            if(fast) return;
+            out.flush();
+            try { Thread.sleep(ms); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+    }
+
+    public static void main(String[] args) {
+        if(args.length > 0 && args[0].equals("--bench")) { Bench.run(args); return; }
+        int serverPort = -1, replicaPort = -1;
+        String importFrom = null, exportDate = null, exportDir = null;
+        for(String arg : args) {
+            if(arg.equals("--journal")) DatabaseManager.journaled = true;
+            else if(arg.equals("--snapshot")) DatabaseManager.snapshots = true;
+            else if(arg.equals("--server")) serverPort = BookingServer.DEFAULT_PORT;
+            else if(arg.startsWith("--server=")) serverPort = Integer.parseInt(arg.substring(9));
+            else if(arg.equals("--replica")) replicaPort = Replica.DEFAULT_PORT;
+            else if(arg.startsWith("--replica=")) replicaPort = Integer.parseInt(arg.substring(10));
+            else if(arg.equals("--publish-changes")) DatabaseManager.ChangeLog.enabled = true;
+            else if(arg.startsWith("--fsync=")) DatabaseManager.syncPolicy = parseSyncPolicy(arg.substring(8));
+            else if(arg.startsWith("--group-commit-ms=")) DatabaseManager.groupCommitMillis = Integer.parseInt(arg.substring(18));
+            else if(arg.startsWith("--write-buffer-kb=")) DatabaseManager.writeBufferBytes = Integer.parseInt(arg.substring(18)) * 1024;
+            else if(arg.startsWith("--node=")) PnrGenerator.node = PnrGenerator.parseNode(arg.substring(7));
+            else if(arg.startsWith("--storage=")) DatabaseManager.engine = parseStorage(arg.substring(10));
+            else if(arg.startsWith("--hold-ttl=")) HoldTimer.ttlMillis = Long.parseLong(arg.substring(11)) * 1000;
+            else if(arg.startsWith("--import=")) importFrom = arg.substring(9);
+            else if(arg.startsWith("--import-batch=")) BulkImporter.batchSize = Integer.parseInt(arg.substring(15));
+            else if(arg.startsWith("--export-manifests=")) exportDate = arg.substring(19);
+            else if(arg.startsWith("--export-dir=")) exportDir = arg.substring(13);
+            else if(arg.startsWith("--metrics-log=")) Metrics.logSeconds = Integer.parseInt(arg.substring(14));
+            else if(arg.equals("--fast")) Screen.fast = true;
+        }
+        if(replicaPort >= 0) { runReplica(replicaPort); return; }
+        Metrics.startLog(DatabaseManager.metricsFile());
+        if(importFrom != null) { runImport(importFrom); return; }
+        if(exportDate != null) { runExport(exportDate, exportDir); return; }
+        if(serverPort >= 0) { runServer(serverPort); return; }
+        Screen.install();
+        showSplashScreen();
+        DatabaseManager.initDB();
+        DataStore.refreshData();
+        randomizeSeats(); 
+
+        Scanner scanner = new Scanner(System.in);
+        while (true) {
+            if (DataStore.currentUser == null) {
+                authMenu(scanner);
+            } else {
+                if (DataStore.currentUser.isAdmin) adminMenu(scanner);
+                else userMenu(scanner);
+            }
+        }
+    }
+
+    // Headless: loads one file and exits (the shutdown hook flushes the DB)
+    private static void runImport(String file) {
+        DatabaseManager.initDB();
+        DataStore.refreshData();
+        try {
+            BulkImporter.print(BulkImporter.importFile(file));
+        } catch (IOException e) {
+            System.out.println(RED + "Import Error: " + e.getMessage() + RESET);
+        }
+    }
+
+    // Headless: every flight's manifest for one date ("today" works too), then exits
+    private static void runExport(String date, String dir) {
+        DatabaseManager.initDB();
+        DataStore.refreshData();
+        try {
+            LocalDate day = date.equalsIgnoreCase("today") ? LocalDate.now() : LocalDate.parse(date);
+            ManifestExport.print(ManifestExport.export(day, DataStore.flights, dir != null ? dir : DatabaseManager.manifestDir()));
+        } catch (java.time.DateTimeException e) {
+            System.out.println(RED + "Export Error: " + date + " is not YYYY-MM-DD" + RESET);
+        }
+    }
+
+    // Headless: no splash or menus, sessions run until the JVM is stopped (Ctrl+C flushes the DB)
+    private static void runServer(int port) {
+        DatabaseManager.initDB();
+        DataStore.refreshData();
+        try {
+            ServerSocket server = BookingServer.start(port);
+            System.out.println(GREEN + "SKYCONNECT SERVER LISTENING ON " + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort() + RESET);
+            new CountDownLatch(1).await();
+        } catch (IOException e) {
+            System.out.println(RED + "Server Error: " + e.getMessage() + RESET);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Headless read-only node over the primary's change stream; writes nothing to the data directory
+    private static void runReplica(int port) {
+        DatabaseManager.engine = new DatabaseManager.ReplicaStorage();
+        DatabaseManager.snapshots = false;
+        DatabaseManager.ChangeLog.enabled = false;
+        Replica.active = true;
+        Metrics.startLog(DatabaseManager.metricsFile().replaceFirst("\\.log$", "-replica-" + port + ".log"));
+        DataStore.refreshData();
+        Replica.follow();
+        try {
+            ServerSocket server = BookingServer.start(port);
+            System.out.println(GREEN + "SKYCONNECT REPLICA LISTENING ON " + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort() + " AT CHANGE " + Replica.seq + RESET);
+            new CountDownLatch(1).await();
+        } catch (IOException e) {
+            System.out.println(RED + "Replica Error: " + e.getMessage() + RESET);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        Scanner scanner = new Scanner(System.in);
-        while (true) {
-            if (DataStore.currentUser == null) {
-                authMenu(scanner);
-            } else {
-                if (DataStore.currentUser.isAdmin) adminMenu(scanner);
-                else userMenu(scanner);
-            }
+    private static DatabaseManager.SyncPolicy parseSyncPolicy(String s) {
+        switch(s) {
+            case "write": return DatabaseManager.SyncPolicy.PER_WRITE;
+            case "shutdown": return DatabaseManager.SyncPolicy.ON_SHUTDOWN;
+            case "group": return DatabaseManager.SyncPolicy.GROUP_COMMIT;
+            default: throw new IllegalArgumentException("--fsync expects write, group or shutdown");
+        }
+    }
+
+    static StorageEngine parseStorage(String s) {
+        switch(s) {
+            case "kv": return new DatabaseManager.KvStorage();
+            case "csv": return new DatabaseManager.CsvStorage();
+            default: throw new IllegalArgumentException("--storage expects csv or kv");
         }
     }
 
@@ -246,23 +4061,17 @@ public class AirlineApp {
         System.out.println("\n" + RESET);
         
         System.out.print("                                  INITIALIZING SYSTEMS [");
+        Random r = new Random();
         for(int i=0; i<20; i++) {
             System.out.print("▓");
-            try { Thread.sleep(50 + new Random().nextInt(50)); } catch(Exception e){}
+            Screen.sleep(50 + r.nextInt(50));
         }
         System.out.println("] 100%");
-        try { Thread.sleep(500); } catch(Exception e){}
+        Screen.sleep(500);
     }
 
     private static void randomizeSeats() {
-        Random r = new Random();
-        for (Flight f : DataStore.flights) {
-            for (int i = 0; i < 8; i++) {
-                if(!f.seats[r.nextInt(8)][r.nextInt(4)]) {
-                    f.seats[r.nextInt(8)][r.nextInt(4)] = (r.nextInt(10) > 7); // 20% chance random fill
-                }
-            }
-        }
+        InventoryStore.demoFill = true; // applied as each departure is opened
     }
 
     private static void authMenu(Scanner sc) {
@@ -278,7 +4087,7 @@ public class AirlineApp {
 
         if (opt == 1) login(sc);
         else if (opt == 2) register(sc);
-        else System.exit(0);
+        else { DatabaseManager.shutdown(); System.out.flush(); System.exit(0); }
     }
 
     private static void login(Scanner sc) {
@@ -286,16 +4095,9 @@ public class AirlineApp {
         System.out.print("   PASSWORD: "); String p = sc.nextLine().trim();
         loading("   AUTHENTICATING...");
 
-        if (DataStore.users.containsKey(u)) {
-            if(DataStore.users.get(u).pass.equals(p)) {
-                DataStore.currentUser = DataStore.users.get(u);
-                printStatus(true, "ACCESS GRANTED. WELCOME " + DataStore.currentUser.name);
-            } else {
-                printStatus(false, "ACCESS DENIED: INCORRECT PASSWORD");
-            }
-        } else {
-            printStatus(false, "USER NOT FOUND");
-        }
+        BookingService.Result<User> res = BookingService.login(u, p);
+        if (res.ok) DataStore.currentUser = res.value;
+        printStatus(res.ok, res.message);
     }
 
     private static void register(Scanner sc) {
@@ -307,11 +4109,8 @@ public class AirlineApp {
         System.out.print("   Full Name: "); String n = sc.nextLine().trim();
         System.out.print("   Password: "); String p = sc.nextLine().trim();
 
-        User newUser = new User(u, p, n, false);
-        DataStore.users.put(u, newUser);
-        DatabaseManager.saveUser(newUser); // Save to CSV
-        
-        printStatus(true, "ACCOUNT CREATED SUCCESSFULLY");
+        BookingService.Result<User> res = BookingService.register(u, n, p);
+        printStatus(res.ok, res.message);
     }
 
     private static void userMenu(Scanner sc) {
@@ -332,7 +4131,7 @@ public class AirlineApp {
         int opt = getIntInput(sc, "\n   ENTER CHOICE > ", 1, 6);
 
         switch (opt) {
-            case 1: bookFlight(sc, DataStore.flights); break;
+            case 1: bookFlight(sc, BookingService.upcoming()); break;
             case 2: searchFlights(sc); break;
             case 3: viewMyTickets(sc, false); break;
             case 4: viewMyTickets(sc, true); break;
@@ -350,10 +4149,13 @@ public class AirlineApp {
         System.out.println(CYAN + "   [3] " + RESET + "REMOVE FLIGHT (DB)");
         System.out.println(CYAN + "   [4] " + RESET + "ANALYTICS");
         System.out.println(CYAN + "   [5] " + RESET + "USER REGISTRY");
-        System.out.println(CYAN + "   [6] " + RESET + "LOGOUT");
+        System.out.println(CYAN + "   [6] " + RESET + "BULK IMPORT (DB)");
+        System.out.println(CYAN + "   [7] " + RESET + "PERFORMANCE METRICS");
+        System.out.println(CYAN + "   [8] " + RESET + "EXPORT MANIFESTS");
+        System.out.println(CYAN + "   [9] " + RESET + "LOGOUT");
         printLine();
         
-        int opt = getIntInput(sc, "\n   COMMAND > ", 1, 6);
+        int opt = getIntInput(sc, "\n   COMMAND > ", 1, 9);
         
         switch(opt) {
             case 1: viewManifests(sc); break;
@@ -361,7 +4163,10 @@ public class AirlineApp {
             case 3: removeFlight(sc); break;
             case 4: viewAnalytics(); break;
             case 5: viewUserRegistry(); break;
-            case 6: logout(); break;
+            case 6: bulkImport(sc); break;
+            case 7: viewMetrics(); break;
+            case 8: exportManifests(sc); break;
+            case 9: logout(); break;
         }
     }
 
@@ -369,16 +4174,23 @@ public class AirlineApp {
     private static void searchFlights(Scanner sc) {
         clearScreen();
         printHeader("SEARCH ENGINE", "QUERY DB");
-        System.out.print("   Enter City Code (e.g. DEL) or ENTER for all: ");
+        System.out.print("   Enter City Code (e.g. DEL), Route (DEL-BOM) or ENTER for all: ");
         String query = sc.nextLine().toUpperCase().trim();
-        
-        List<Flight> results = DataStore.flights;
-        if (!query.isEmpty()) {
-            results = DataStore.flights.stream()
-                .filter(f -> f.org.contains(query) || f.dst.contains(query))
-                .collect(Collectors.toList());
+        System.out.print("   Travel Date YYYY-MM-DD or range FROM..TO (ENTER for today): ");
+        String when = sc.nextLine().trim();
+        LocalDate from, to;
+        try {
+            String[] range = when.split("\\.\\.");
+            from = when.isEmpty() ? LocalDate.now() : LocalDate.parse(range[0].trim());
+            to = range.length > 1 ? LocalDate.parse(range[1].trim()) : from;
+        } catch (java.time.DateTimeException e) {
+            printStatus(false, "INVALID DATE"); return;
         }
 
+        List<FlightInstance> results = BookingService.departures(query, from, to);
+        String[] route = query.split("[\\s>-]+");
+        if (route.length == 2 && showConnections(sc, route[0], route[1], from, results)) return;
+
         if (results.isEmpty()) {
             printStatus(false, "NO FLIGHTS FOUND");
         } else {
@@ -386,156 +4198,186 @@ public class AirlineApp {
         }
     }
 
-    private static void bookFlight(Scanner sc, List<Flight> availableFlights) {
+    // Lists the cheapest and fastest connecting journeys for a city pair. Returns false to fall
+    // through to the direct-flight list (or its "not found" message).
+    private static boolean showConnections(Scanner sc, String org, String dst, LocalDate date, List<FlightInstance> direct) {
+        List<ItinerarySearch.Itinerary> options = new ArrayList<>();
+        for(ItinerarySearch.Objective o : ItinerarySearch.Objective.values()) {
+            for(ItinerarySearch.Itinerary it : BookingService.connections(org, dst, date, 2, o, 3)) {
+                if(it.stops() > 0 && options.stream().noneMatch(x -> x.legs.equals(it.legs))) options.add(it);
+            }
+        }
+        if (options.isEmpty()) return false;
+
+        clearScreen();
+        printHeader("CONNECTING ITINERARIES", org + " -> " + dst + "  " + date);
+        for (int i = 0; i < options.size(); i++) {
+            ItinerarySearch.Itinerary it = options.get(i);
+            System.out.printf("   " + WHITE + "[%d]" + RESET + " %d stop(s)  %dh%02dm  ₹%s\n", i + 1, it.stops(), it.elapsed / 60, it.elapsed % 60, formatMoney(it.price));
+            for (int l = 0; l < it.legs.size(); l++) {
+                FlightInstance leg = it.leg(l);
+                System.out.printf("        %-8s %s -> %s  %s %s\n", leg.f.id, leg.f.org, leg.f.dst, leg.date, leg.f.time);
+            }
+        }
+        String back = direct.isEmpty() ? "0 to back" : "0 for " + direct.size() + " direct flight(s)";
+        int sel = getIntInput(sc, "\n   SELECT ITINERARY # (" + back + "): ", 0, options.size());
+        if (sel == 0) return direct.isEmpty();
+
+        ItinerarySearch.Itinerary it = options.get(sel - 1);
+        for (int l = 0; l < it.legs.size(); l++) bookFlight(sc, Collections.singletonList(it.leg(l))); // one booking per leg
+        return true;
+    }
+
+    private static void bookFlight(Scanner sc, List<FlightInstance> availableFlights) {
         clearScreen();
         printHeader("FLIGHT SELECTION", availableFlights.size() + " ROUTES FOUND");
 
-        System.out.printf("   %-4s %-8s %-10s %-10s %-10s %-10s\n", "#", "ID", "ORG", "DST", "TIME", "FARE");
-        System.out.println("   " + CYAN + "────────────────────────────────────────────────────────────" + RESET);
+        System.out.printf("   %-4s %-8s %-10s %-10s %-11s %-10s %-10s\n", "#", "ID", "ORG", "DST", "DATE", "TIME", "FARE");
+        System.out.println("   " + CYAN + "────────────────────────────────────────────────────────────────────────" + RESET);
         
         for (int i = 0; i < availableFlights.size(); i++) {
-            Flight f = availableFlights.get(i);
+            FlightInstance fi = availableFlights.get(i);
             String sn = String.format("[%d]", i + 1);
-            System.out.printf("   " + WHITE + "%-4s" + RESET + " %-8s %-10s %-10s %-10s ₹%-9.0f\n", sn, f.id, f.org, f.dst, f.time, f.price);
+            System.out.printf("   " + WHITE + "%-4s" + RESET + " %-8s %-10s %-10s %-11s %-10s ₹%-9s\n", sn, fi.f.id, fi.f.org, fi.f.dst, fi.date, fi.f.time, formatMoney(PricingEngine.fare(fi, CabinClass.ECONOMY)));
         }
 
         int selection = getIntInput(sc, "\n   SELECT SERIAL # (0 to back): ", 0, availableFlights.size());
         if (selection == 0) return;
 
-        Flight f = availableFlights.get(selection - 1);
+        FlightInstance fi = availableFlights.get(selection - 1);
+        Flight f = fi.f;
 
         // Class
         clearScreen();
-        printHeader("CABIN CLASS", f.id);
+        printHeader("CABIN CLASS", f.id + " " + fi.date);
         int i = 1;
         for(CabinClass cc : CabinClass.values()) {
-            System.out.printf("   [%d] %-15s (x%.1f Fare)\n", i++, cc.label, cc.multiplier);
+            System.out.printf("   [%d] %-15s ₹%-9s %-10s %3d seats left\n", i++, cc.label, formatMoney(PricingEngine.fare(fi, cc)), PricingEngine.BUCKET_NAME[PricingEngine.bucket(fi, cc)], fi.seats.freeSeats(cc));
         }
         int classIdx = getIntInput(sc, "\n   SELECT CLASS > ", 1, 3) - 1;
         CabinClass selectedClass = CabinClass.values()[classIdx];
 
         // Seat
-        String seatNum = selectSeat(sc, f, selectedClass);
-        if (seatNum == null) return;
+        BookingService.SeatHold hold = selectSeat(sc, fi, selectedClass);
+        if (hold == null) return;
 
         // Meal
         clearScreen();
         printHeader("IN-FLIGHT DINING", "CATERING");
         i = 1;
         for(MealType m : MealType.values()) {
-            System.out.printf("   [%d] %-15s (+₹%.0f)\n", i++, m.label, m.price);
+            System.out.printf("   [%d] %-15s (+₹%s)\n", i++, m.label, formatMoney(m.price));
         }
         int mealIdx = getIntInput(sc, "\n   SELECT MEAL > ", 1, 5) - 1;
         MealType selectedMeal = MealType.values()[mealIdx];
 
-        // Payment
-        double baseFare = f.price * selectedClass.multiplier;
-        double total = baseFare + selectedMeal.price;
-        
-        clearScreen();
-        printHeader("BILLING INVOICE", "FINAL REVIEW");
-        System.out.println("   Flight:    " + f.id + " (" + f.org + " -> " + f.dst + ")");
-        System.out.println("   Seat:      " + seatNum + " (" + selectedClass.label + ")");
-        System.out.println("   Add-on:    " + selectedMeal.label);
-        printLine();
-        System.out.println("   TOTAL:     " + GREEN + "₹" + formatMoney(total) + RESET);
-        
-        if(DataStore.currentUser.wallet < total) {
-            printStatus(false, "INSUFFICIENT WALLET BALANCE");
-            return;
-        }
+        // Payment: the total shown is the total charged; if the fare is republished meanwhile, show it again
+        BookingService.Result<Ticket> res;
+        do {
+            BookingService.Quote q = BookingService.quote(fi, selectedClass, selectedMeal);
 
-        System.out.print("\n   CONFIRM PAYMENT? (Y/N): ");
-        if(sc.nextLine().equalsIgnoreCase("Y")) {
-            loading("   PROCESSING PAYMENT");
-            
-            DataStore.currentUser.wallet -= total;
-            DatabaseManager.updateUserWallet(DataStore.currentUser); // Update DB
+            clearScreen();
+            printHeader("BILLING INVOICE", "FINAL REVIEW");
+            System.out.println("   Flight:    " + f.id + " (" + f.org + " -> " + f.dst + ") on " + fi.date);
+            System.out.println("   Seat:      " + hold.seat + " (" + selectedClass.label + "), held until " + new SimpleDateFormat("HH:mm:ss").format(new Date(hold.expires)));
+            System.out.println("   Add-on:    " + selectedMeal.label);
+            printLine();
+            System.out.println("   TOTAL:     " + GREEN + "₹" + formatMoney(q.total) + RESET);
 
-            int r = Integer.parseInt(seatNum.substring(0, seatNum.length()-1)) - 1;
-            int c = seatNum.charAt(seatNum.length()-1) - 'A';
-            f.seats[r][c] = true;
+            if(DataStore.currentUser.wallet < q.total) {
+                BookingService.releaseHold(hold);
+                printStatus(false, "INSUFFICIENT WALLET BALANCE");
+                return;
+            }
 
-            String pnr = "PNR-" + (1000 + new Random().nextInt(8999));
-            Ticket t = new Ticket(f, seatNum, DataStore.currentUser.name, selectedClass, selectedMeal, total, pnr);
-            
-            DataStore.tickets.add(t);
-            DatabaseManager.saveBooking(t); // Save to DB
+            System.out.print("\n   CONFIRM PAYMENT? (Y/N): ");
+            if(!sc.nextLine().equalsIgnoreCase("Y")) {
+                BookingService.releaseHold(hold);
+                return;
+            }
+            loading("   PROCESSING PAYMENT");
 
-            printStatus(true, "BOOKING CONFIRMED! PNR: " + pnr);
-            
-            System.out.print("   View Boarding Pass? (Y/N): ");
-            if(sc.nextLine().equalsIgnoreCase("Y")) printBoardingPass(t);
-        }
+            res = BookingService.confirm(DataStore.currentUser, hold, q);
+            printStatus(res.ok, res.message);
+        } while(!res.ok && res.message.equals(BookingService.FARE_CHANGED));
+        if(!res.ok) return;
+
+        System.out.print("   View Boarding Pass? (Y/N): ");
+        if(sc.nextLine().equalsIgnoreCase("Y")) printBoardingPass(res.value);
     }
 
-    private static String selectSeat(Scanner sc, Flight f, CabinClass cc) {
+    // Loops until a seat in the cabin is held for this session, or the user backs out (null)
+    private static BookingService.SeatHold selectSeat(Scanner sc, FlightInstance fi, CabinClass cc) {
         while(true) {
             clearScreen();
-            System.out.println(BG_CYAN + BLACK + "    SEAT MAP: " + cc.label + "    " + RESET);
-            System.out.println("    Rows " + (cc.startRow + 1) + " - " + cc.endRow);
-            System.out.println("\n        A   B     C   D");
-            
-            for(int r=0; r<8; r++) {
-                String color = (r >= cc.startRow && r < cc.endRow) ? WHITE : BLACK;
-                System.out.printf(color + "   %2d   ", (r+1));
-                
-                for(int c=0; c<4; c++) {
-                    String sym = f.seats[r][c] ? RED + "[X]" : GREEN + "[ ]";
-                    if(r < cc.startRow || r >= cc.endRow) sym = BLACK + "[░]";
-                    System.out.print(sym + RESET + " ");
-                    if(c==1) System.out.print("    ");
+            SeatLayout layout = fi.f.layout;
+            int start = layout.startRow(cc), end = layout.endRow(cc);
+            StringBuilder map = new StringBuilder(4096);
+            map.append(BG_CYAN).append(BLACK).append("    SEAT MAP: ").append(cc.label).append("    ").append(RESET).append('\n');
+            map.append("    Rows ").append(start + 1).append(" - ").append(end).append("  (").append(fi.seats.freeSeats(cc)).append(" free)\n");
+            map.append(seatMapHeader(layout));
+
+            char[] pattern = layout.pattern.toCharArray();
+            for(int r=0; r<layout.rows; r++) {
+                boolean inCabin = r >= start && r < end;
+                map.append(inCabin ? WHITE : BLACK).append(r < 9 ? "    " : "   ").append(r + 1).append("   ");
+
+                int c = 0;
+                for(char ch : pattern) {
+                    if(ch == ' ') { map.append("    "); continue; }
+                    int seat = r * layout.seatsPerRow + c++;
+                    map.append(!inCabin ? SEAT_BLOCKED : !fi.seats.isTaken(seat) ? SEAT_FREE : fi.seats.isHeld(seat) ? SEAT_HELD : SEAT_TAKEN);
                 }
-                System.out.println();
+                map.append('\n');
             }
+            map.append(SEAT_LEGEND);
+            System.out.print(map);
 
-            System.out.print("\n   Select Seat (e.g. 1A) or X to Cancel: ");
+            System.out.print("\n   Select Seat (e.g. " + (start + 1) + "A), ENTER for next free, or X to Cancel: ");
             String in = sc.nextLine().toUpperCase().trim();
             if(in.equals("X")) return null;
 
-            if(in.length() < 2) continue;
-            try {
-                int r = Integer.parseInt(in.substring(0, in.length()-1)) - 1;
-                int c = in.charAt(in.length()-1) - 'A';
-
-                if (r < cc.startRow || r >= cc.endRow) {
-                    System.out.println(RED + "   Restricted Seat Selection." + RESET);
-                    pause(); continue;
-                }
-                if (f.seats[r][c]) {
-                    System.out.println(RED + "   Seat Unavailable." + RESET);
-                    pause(); continue;
-                }
-                return in;
-            } catch (Exception e) {
-                System.out.println(RED + "   Invalid Format." + RESET); pause();
-            }
+            BookingService.Result<BookingService.SeatHold> res = in.isEmpty() ? BookingService.holdNextFree(fi, cc) : BookingService.holdSeat(fi, cc, in);
+            if(res.ok) return res.value;
+            System.out.println(RED + "   " + res.message + RESET);
+            pause();
         }
     }
 
+    private static final String SEAT_FREE = GREEN + "[ ]" + RESET + " ", SEAT_HELD = YELLOW + "[H]" + RESET + " ",
+        SEAT_TAKEN = RED + "[X]" + RESET + " ", SEAT_BLOCKED = BLACK + "[░]" + RESET + " ";
+    private static final String SEAT_LEGEND = "\n   " + GREEN + "[ ]" + RESET + " free  " + YELLOW + "[H]" + RESET + " held  " + RED + "[X]" + RESET + " booked\n";
+    private static final Map<String, String> SEAT_MAP_HEADERS = new HashMap<>();
+
+    private static String seatMapHeader(SeatLayout layout) {
+        return SEAT_MAP_HEADERS.computeIfAbsent(layout.pattern, p -> {
+            StringBuilder header = new StringBuilder("\n        ");
+            for(char ch : p.toCharArray()) header.append(ch == ' ' ? "    " : " " + ch + "  ");
+            return header.append('\n').toString();
+        });
+    }
+
     private static void viewMyTickets(Scanner sc, boolean cancelMode) {
         clearScreen();
         String title = cancelMode ? "CANCELLATION PORTAL" : "MY BOOKINGS";
         printHeader(title, DataStore.currentUser.name);
 
-        List<Ticket> myTix = DataStore.tickets.stream()
-            .filter(t -> t.owner.equals(DataStore.currentUser.name))
-            .collect(Collectors.toList());
+        List<Ticket> myTix = BookingService.myTickets(DataStore.currentUser);
 
         if (myTix.isEmpty()) {
             printStatus(false, "NO ACTIVE BOOKINGS"); return;
         }
 
-        System.out.printf("   %-4s %-10s %-8s %-15s %-10s\n", "#", "PNR", "ROUTE", "DESTINATION", "STATUS");
+        System.out.printf("   %-4s %-10s %-8s %-11s %-15s %-10s\n", "#", "PNR", "ROUTE", "DATE", "DESTINATION", "STATUS");
         for (int i = 0; i < myTix.size(); i++) {
             Ticket t = myTix.get(i);
-            System.out.printf("   [%d]  %-10s %-8s %-15s %s\n", (i+1), t.bookingId, t.f.id, t.f.dst, GREEN + "CONFIRMED" + RESET);
+            System.out.printf("   [%d]  %-10s %-8s %-11s %-15s %s\n", (i+1), t.bookingId, t.f.id, t.date, t.f.dst, GREEN + "CONFIRMED" + RESET);
         }
 
         if (cancelMode) {
             int idx = getIntInput(sc, "\n   Select # to CANCEL (0 to back): ", 0, myTix.size());
             if (idx == 0) return;
-            cancelTicket(myTix.get(idx - 1));
+            cancelTicket(sc, myTix.get(idx - 1));
         } else {
             int idx = getIntInput(sc, "\n   Select # to View Pass (0 to back): ", 0, myTix.size());
             if (idx == 0) return;
@@ -543,24 +4385,14 @@ public class AirlineApp {
         }
     }
 
-    private static void cancelTicket(Ticket t) {
+    private static void cancelTicket(Scanner sc, Ticket t) {
         System.out.println(RED + "\n   !!! CONFIRM CANCELLATION !!!" + RESET);
         System.out.println("   Refund Amount: ₹" + formatMoney(t.paidPrice));
         System.out.print("   Proceed? (Y/N): ");
-        Scanner sc = new Scanner(System.in);
         if(sc.nextLine().equalsIgnoreCase("Y")) {
             loading("   PROCESSING REFUND");
-            int r = Integer.parseInt(t.seat.substring(0, t.seat.length()-1)) - 1;
-            int c = t.seat.charAt(t.seat.length()-1) - 'A';
-            t.f.seats[r][c] = false;
-            
-            DataStore.currentUser.wallet += t.paidPrice;
-            DatabaseManager.updateUserWallet(DataStore.currentUser); // Update DB
-
-            DataStore.tickets.remove(t);
-            DatabaseManager.deleteBooking(t.bookingId); // Update DB
-
-            printStatus(true, "REFUND SUCCESSFUL");
+            BookingService.Result<Ticket> res = BookingService.cancel(DataStore.currentUser, t);
+            printStatus(res.ok, res.message);
         }
     }
 
@@ -568,32 +4400,82 @@ public class AirlineApp {
     private static void viewManifests(Scanner sc) {
         System.out.print("\n   Enter Flight ID (e.g. AI-101): ");
         String fid = sc.nextLine().toUpperCase();
-        
-        System.out.println(CYAN + "\n   --- MANIFEST: " + fid + " ---" + RESET);
+        if(DataStore.findFlight(fid) == null) { printStatus(false, "FLIGHT NOT FOUND"); return; }
+        System.out.print("   Date YYYY-MM-DD (ENTER for all upcoming): ");
+        String when = sc.nextLine().trim();
+        LocalDate date;
+        try { date = when.isEmpty() ? null : LocalDate.parse(when); }
+        catch (java.time.DateTimeException e) { printStatus(false, "INVALID DATE"); return; }
+
+        // Past days come from the archive; upcoming ones from the flight's manifest index, in seat order
+        boolean past = date != null && date.toEpochDay() < InventoryStore.today();
+        Collection<Ticket> source;
+        if(past) {
+            List<Ticket> day = new ArrayList<>();
+            for(Ticket t : InventoryStore.archived(date)) if(t.f.id.equals(fid)) day.add(t);
+            day.sort(Comparator.comparingInt(t -> t.f.layout.seatIndex(t.seat)));
+            source = day;
+        } else {
+            LocalDate from = date != null ? date : LocalDate.now();
+            source = DataStore.manifest(fid, from, date != null ? date : from.plusDays(InventoryStore.windowDays));
+        }
+        System.out.println(CYAN + "\n   --- MANIFEST: " + fid + (date == null ? "" : " " + date) + (past ? " (ARCHIVED)" : "") + " ---" + RESET);
         boolean found = false;
-        for(Ticket t : DataStore.tickets) {
-            if(t.f.id.equals(fid)) {
-                System.out.printf("   Seat: %-3s | PNR: %-8s | %-15s | %s\n", t.seat, t.bookingId, t.owner, t.travelClass.label);
-                found = true;
-            }
+        for(Ticket t : source) {
+            System.out.printf("   %s | Seat: %-3s | PNR: %-10s | %-15s | %s\n", t.date, t.seat, t.bookingId, t.owner, t.travelClass.label);
+            found = true;
         }
         if(!found) printStatus(false, "NO PASSENGERS FOUND");
         else pause();
     }
 
+    private static void exportManifests(Scanner sc) {
+        System.out.println(CYAN + "\n   --- EXPORT MANIFESTS ---" + RESET);
+        System.out.print("   Date YYYY-MM-DD (ENTER for today): ");
+        String when = sc.nextLine().trim();
+        LocalDate date;
+        try { date = when.isEmpty() ? LocalDate.now() : LocalDate.parse(when); }
+        catch (java.time.DateTimeException e) { printStatus(false, "INVALID DATE"); return; }
+        System.out.print("   Flight IDs, comma separated (ENTER for all): ");
+        String ids = sc.nextLine().trim().toUpperCase();
+        List<Flight> flights = new ArrayList<>();
+        if(ids.isEmpty()) flights.addAll(DataStore.flights);
+        else for(String id : ids.split(",")) {
+            Flight f = DataStore.findFlight(id.trim());
+            if(f == null) { printStatus(false, "FLIGHT " + id.trim() + " NOT FOUND"); return; }
+            flights.add(f);
+        }
+        loading("   WRITING MANIFESTS");
+        ManifestExport.Report r = ManifestExport.export(date, flights, DatabaseManager.manifestDir());
+        ManifestExport.print(r);
+        printStatus(r.errors.isEmpty(), r.files.sum() + " MANIFESTS EXPORTED");
+    }
+
+    private static void bulkImport(Scanner sc) {
+        System.out.println(CYAN + "\n   --- BULK IMPORT ---" + RESET);
+        System.out.println("   Flights: a file with the flights.csv columns");
+        System.out.println("   Bookings: a file headed " + BulkImporter.BOOKINGS_HEADER);
+        System.out.print("   File path: ");
+        String file = sc.nextLine().trim();
+        try {
+            BulkImporter.Report r = BulkImporter.importFile(file);
+            BulkImporter.print(r);
+            printStatus(r.applied > 0, r.applied + " ROWS IMPORTED");
+        } catch (IOException e) {
+            printStatus(false, "CANNOT READ " + file);
+        }
+    }
+
     private static void removeFlight(Scanner sc) {
         System.out.print("\n   Flight ID to DELETE: ");
         String fid = sc.nextLine().toUpperCase();
         
-        Flight toRemove = null;
-        for(Flight f : DataStore.flights) {
-            if(f.id.equals(fid)) { toRemove = f; break; }
-        }
+        Flight toRemove = DataStore.findFlight(fid);
 
         if(toRemove != null) {
             System.out.print(RED + "   ⚠ Confirm deletion? (Y/N): " + RESET);
             if(sc.nextLine().equalsIgnoreCase("Y")) {
-                DataStore.flights.remove(toRemove);
+                DataStore.removeFlight(toRemove);
                 DatabaseManager.deleteFlight(toRemove.id); // DELETE FROM DB
                 printStatus(true, "ROUTE DELETED");
             }
@@ -604,13 +4486,48 @@ public class AirlineApp {
         clearScreen();
         printHeader("SYSTEM ANALYTICS", "LIVE DATA");
         
-        double totalRevenue = DataStore.tickets.stream().mapToDouble(t -> t.paidPrice).sum();
-        
-        System.out.println("   " + GREEN + "Total Revenue:       ₹" + formatMoney(totalRevenue) + RESET);
-        System.out.println("   " + CYAN +  "Total Bookings:      " + DataStore.tickets.size() + RESET);
+        Analytics.Tally total = Analytics.total;
+        System.out.println("   " + GREEN + "Total Revenue:       ₹" + formatMoney(total.revenue.sum()) + RESET);
+        System.out.println("   " + CYAN +  "Total Bookings:      " + total.bookings.sum() + RESET);
         System.out.println("   " + WHITE + "Registered Users:    " + DataStore.users.size() + RESET);
         System.out.println("   " + WHITE + "Active Routes:       " + DataStore.flights.size() + RESET);
+        System.out.printf("   " + WHITE + "Seat Load Factor:    %.1f%%\n" + RESET, total.loadFactor() * 100);
+        printLine();
+
+        System.out.printf("   %-16s %10s %16s %8s\n", "CABIN", "BOOKINGS", "REVENUE", "LOAD");
+        for(CabinClass cc : CabinClass.values()) {
+            Analytics.Tally t = Analytics.byCabin[cc.ordinal()];
+            System.out.printf("   %-16s %,10d %16s %7.1f%%\n", cc.label, t.bookings.sum(), "₹" + formatMoney(t.revenue.sum()), t.loadFactor() * 100);
+        }
+        System.out.printf("\n   %-16s %10s %16s\n", "MEAL", "BOOKINGS", "REVENUE");
+        for(MealType m : MealType.values()) {
+            Analytics.Tally t = Analytics.byMeal[m.ordinal()];
+            System.out.printf("   %-16s %,10d %16s\n", m.label, t.bookings.sum(), "₹" + formatMoney(t.revenue.sum()));
+        }
+        System.out.printf("\n   %-16s %10s %16s %8s\n", "TOP ROUTES", "BOOKINGS", "REVENUE", "LOAD");
+        for(Map.Entry<String, Analytics.Tally> e : Analytics.top(Analytics.byRoute, 5)) {
+            Analytics.Tally t = e.getValue();
+            System.out.printf("   %-16s %,10d %16s %7.1f%%\n", e.getKey(), t.bookings.sum(), "₹" + formatMoney(t.revenue.sum()), t.loadFactor() * 100);
+        }
+        System.out.printf("\n   %-16s %10s %16s %8s\n", "TOP FLIGHTS", "BOOKINGS", "REVENUE", "LOAD");
+        for(Map.Entry<String, Analytics.Tally> e : Analytics.top(Analytics.byFlight, 5)) {
+            Analytics.Tally t = e.getValue();
+            System.out.printf("   %-16s %,10d %16s %7.1f%%\n", e.getKey(), t.bookings.sum(), "₹" + formatMoney(t.revenue.sum()), t.loadFactor() * 100);
+        }
+        printLine();
+        pause();
+    }
+
+    private static void viewMetrics() {
+        clearScreen();
+        printHeader("PERFORMANCE METRICS", "SINCE STARTUP");
+        List<String> lines = Metrics.lines();
+        System.out.println("   " + CYAN + lines.get(0) + RESET);
+        for(String line : lines.subList(1, lines.size() - 1)) System.out.println("   " + line);
         printLine();
+        String errors = lines.get(lines.size() - 1);
+        System.out.println("   " + (Metrics.ioErrors.sum() > 0 ? RED : GREEN) + errors + RESET);
+        if(Metrics.logSeconds > 0) System.out.println("   Logged every " + Metrics.logSeconds + "s to " + DatabaseManager.metricsFile());
         pause();
     }
 
@@ -631,13 +4548,17 @@ public class AirlineApp {
         System.out.println(CYAN + "\n   --- ADD NEW ROUTE ---" + RESET);
         try {
             System.out.print("   Flight ID: "); String id = sc.nextLine().toUpperCase();
+            if(DataStore.findFlight(id) != null) { printStatus(false, "FLIGHT ID ALREADY EXISTS"); return; }
             System.out.print("   Origin: "); String org = sc.nextLine().toUpperCase();
             System.out.print("   Destination: "); String dst = sc.nextLine().toUpperCase();
             System.out.print("   Time (HH:MM): "); String time = sc.nextLine();
-            System.out.print("   Price (₹): "); double price = Double.parseDouble(sc.nextLine());
+            System.out.print("   Price (₹): "); long price = Money.parse(sc.nextLine());
+            System.out.print("   Aircraft (REGIONAL/NARROWBODY/WIDEBODY) [REGIONAL]: "); SeatLayout layout = SeatLayout.parse(sc.nextLine());
+            System.out.print("   Block Time (mins) [120]: "); String mins = sc.nextLine().trim();
             
-            Flight f = new Flight(id, org, dst, time, price);
-            DataStore.flights.add(f);
+            Flight f = new Flight(id, org, dst, time, price, layout);
+            if(!mins.isEmpty()) f.duration = Integer.parseInt(mins);
+            DataStore.addFlight(f);
             DatabaseManager.saveFlight(f); // SAVE TO DB
             printStatus(true, "FLIGHT ROUTE ADDED");
         } catch (Exception e) {
@@ -655,45 +4576,40 @@ public class AirlineApp {
 
     private static void printBoardingPass(Ticket t) {
         clearScreen();
-        String flightDate = LocalDate.now().plusDays(2).format(DateTimeFormatter.ofPattern("dd MMM yyyy"));
+        String flightDate = t.date.format(DateTimeFormatter.ofPattern("dd MMM yyyy"));
         String terminal = "T" + (Math.abs(t.f.id.hashCode()) % 3 + 1);
         String gate = "G" + (Math.abs(t.f.id.hashCode()) % 20 + 1);
         String baggage = t.travelClass == CabinClass.ECONOMY ? "15 KG" : (t.travelClass == CabinClass.BUSINESS ? "30 KG" : "50 KG");
         String priority = t.travelClass != CabinClass.ECONOMY ? GREEN + "PRIORITY" + RESET : "STANDARD";
 
-        String border = CYAN + "╔════════════════════════════════════════════════════════════╗" + RESET;
-        String thinBorder = CYAN + "╟────────────────────────────────────────────────────────────╢" + RESET;
-        String bottom = CYAN + "╚════════════════════════════════════════════════════════════╝" + RESET;
-
-        System.out.println("\n" + border);
+        System.out.println("\n" + BOX_TOP);
         System.out.println(CYAN + "║ SKYCONNECT " + RESET + WHITE + "| BOARDING PASS" + String.format("%37s", "CLASS: " + t.travelClass.label.toUpperCase()) + CYAN + " ║" + RESET);
-        System.out.println(thinBorder);
+        System.out.println(BOX_RULE);
         System.out.printf(CYAN + "║" + RESET + " %-15s %-15s %-15s            " + CYAN + "║\n" + RESET, "PASSENGER", "FLIGHT", "DATE");
         System.out.printf(CYAN + "║" + RESET + " " + BOLD + "%-15s %-15s %-15s" + RESET + "            " + CYAN + "║\n" + RESET, t.owner.split(" ")[0].toUpperCase(), t.f.id, flightDate);
-        System.out.println(CYAN + "║                                                            ║" + RESET);
+        System.out.println(BOX_BLANK);
         System.out.printf(CYAN + "║" + RESET + " %-15s %-15s %-15s            " + CYAN + "║\n" + RESET, "FROM", "TO", "TIME");
         System.out.printf(CYAN + "║" + RESET + " " + BOLD + "%-15s %-15s %-15s" + RESET + "            " + CYAN + "║\n" + RESET, t.f.org, t.f.dst, minus30Mins(t.f.time));
-        System.out.println(CYAN + "║                                                            ║" + RESET);
+        System.out.println(BOX_BLANK);
         System.out.printf(CYAN + "║" + RESET + " %-10s %-10s %-15s                   " + CYAN + "║\n" + RESET, "TERM", "GATE", "BAGS");
         System.out.printf(CYAN + "║" + RESET + " " + BOLD + "%-10s %-10s %-15s" + RESET + "                   " + CYAN + "║\n" + RESET, terminal, gate, baggage);
-        System.out.println(thinBorder);
+        System.out.println(BOX_RULE);
         System.out.printf(CYAN + "║" + RESET + " %-10s %-20s %-15s         " + CYAN + "║\n" + RESET, "SEAT", "MEAL", "PNR");
         System.out.printf(CYAN + "║" + RESET + " " + BG_BLUE + WHITE + " %-3s " + RESET + "      " + BOLD + "%-20s %-15s" + RESET + "         " + CYAN + "║\n" + RESET, t.seat, t.meal.label, t.bookingId);
-        System.out.println(thinBorder);
+        System.out.println(BOX_RULE);
         System.out.println(CYAN + "║" + RESET + " GROUP: " + priority + String.format("%48s", " ") + CYAN + "║");
         System.out.println(CYAN + "║" + WHITE + " ||| | ||| || ||| | || |||| | || || | ||| || ||| | ||       " + CYAN + "║" + RESET);
-        System.out.println(bottom);
+        System.out.println(BOX_BOTTOM);
         pause();
     }
 
     private static void addFunds(Scanner sc) {
         System.out.print("\n   Enter Amount (₹): ");
         try {
-            double amt = Double.parseDouble(sc.nextLine());
-            DataStore.currentUser.wallet += amt;
-            DatabaseManager.updateUserWallet(DataStore.currentUser);
-            printStatus(true, "WALLET UPDATED");
-        } catch (Exception e) { printStatus(false, "INVALID AMOUNT"); }
+            long amt = Money.parse(sc.nextLine());
+            BookingService.Result<Long> res = BookingService.topUp(DataStore.currentUser, amt);
+            printStatus(res.ok, res.message);
+        } catch (NumberFormatException e) { printStatus(false, "INVALID AMOUNT"); }
     }
 
     private static int getIntInput(Scanner sc, String prompt, int min, int max) {
@@ -721,52 +4637,839 @@ public class AirlineApp {
         } catch(Exception e) { return time; }
     }
 
-    private static String formatMoney(double d) { return new DecimalFormat("#,###").format(d); }
-    private static void clearScreen() { System.out.print("\033[H\033[2J"); System.out.flush(); }
-    private static void loading(String m) { System.out.print(m); try{Thread.sleep(400);}catch(Exception e){} System.out.println(); }
+    private static final DecimalFormat MONEY = new DecimalFormat("#,###"); // UI thread only
+    private static String formatMoney(long paise) { return MONEY.format(paise / 100.0); }
+    private static void clearScreen() { System.out.print("\033[H\033[2J"); }
+    private static void loading(String m) { System.out.print(m); Screen.sleep(400); System.out.println(); }
     private static void pause() { System.out.print(BLACK + "\n   [ENTER] to continue..." + RESET); try{System.in.read();}catch(Exception e){} }
     private static void logout() { DataStore.currentUser = null; }
     
+    private static final String BOX_TOP = CYAN + "╔════════════════════════════════════════════════════════════╗" + RESET;
+    private static final String BOX_RULE = CYAN + "╟────────────────────────────────────────────────────────────╢" + RESET;
+    private static final String BOX_BOTTOM = CYAN + "╚════════════════════════════════════════════════════════════╝" + RESET;
+    private static final String BOX_BLANK = CYAN + "║                                                            ║" + RESET;
+    private static final String LINE = CYAN + "──────────────────────────────────────────────────────────────" + RESET;
+
     private static void printHeader(String m, String s) { 
-        System.out.println(CYAN + "╔════════════════════════════════════════════════════════════╗" + RESET);
-        System.out.printf(CYAN + "║" + WHITE + " %-25s %32s " + CYAN + "║\n" + RESET, m, s);
-        System.out.println(CYAN + "╚════════════════════════════════════════════════════════════╝" + RESET);
+        System.out.print(BOX_TOP + "\n" + CYAN + "║" + WHITE + String.format(" %-25s %32s ", m, s) + CYAN + "║\n" + RESET + BOX_BOTTOM + "\n");
     }
     
     private static void printBoxed(String text) {
-        System.out.println(CYAN + "╔════════════════════════════════════════════════════════════╗" + RESET);
         int pad = (58 - text.length()) / 2;
-        System.out.printf(CYAN + "║" + WHITE + "%" + pad + "s%s%-" + (58 - pad - text.length()) + "s" + CYAN + "║\n" + RESET, "", text, "");
-        System.out.println(CYAN + "╚════════════════════════════════════════════════════════════╝" + RESET);
+        System.out.print(BOX_TOP + "\n" + CYAN + "║" + WHITE + String.format("%" + pad + "s%s%-" + (58 - pad - text.length()) + "s", "", text, "") + CYAN + "║\n" + RESET + BOX_BOTTOM + "\n");
     }
 
     private static void printLine() {
-        System.out.println(CYAN + "──────────────────────────────────────────────────────────────" + RESET);
+        System.out.println(LINE);
     }
     
+    // --- BENCHMARKS ---
+    // Run with: java AirlineApp --bench <name> [args]. Works on scratch CSVs in a temp directory.
+    static class Bench {
+        static void run(String[] args) {
+            String name = args.length > 1 ? args[1] : "startup";
+            try {
+                switch(name) {
+                    case "suite": suite(intArg(args, 2, 20000), intArg(args, 3, 200000), intArg(args, 4, 1000), intArg(args, 5, 2)); break;
+                    case "startup": startup(intArg(args, 2, 20000), intArg(args, 3, 1000000)); break;
+                    case "csv": csv(intArg(args, 2, 20000), intArg(args, 3, 1000000)); break;
+                    case "append": append(intArg(args, 2, 200000)); break;
+                    case "search": search(intArg(args, 2, 100000), intArg(args, 3, 2000)); break;
+                    case "itinerary": itinerary(intArg(args, 2, 50000), intArg(args, 3, 500)); break;
+                    case "import": importer(intArg(args, 2, 200000), intArg(args, 3, 1000)); break;
+                    case "holds": holds(intArg(args, 2, 500000), intArg(args, 3, 5)); break;
+                    case "manifest": manifest(intArg(args, 2, 2000), intArg(args, 3, 500000), intArg(args, 4, 2)); break;
+                    case "pnr": pnr(intArg(args, 2, Runtime.getRuntime().availableProcessors()), intArg(args, 3, 5000000)); break;
+                    case "server": server(intArg(args, 2, 200), intArg(args, 3, 20)); break;
+                    case "stress": stress(intArg(args, 2, Runtime.getRuntime().availableProcessors()), intArg(args, 3, 2000), intArg(args, 4, 2000000)); break;
+                    default: System.out.println("Unknown benchmark: " + name);
+                }
+            } catch (IOException e) { System.out.println(RED + "Bench Error: " + e.getMessage() + RESET); }
+        }
+
+        static int intArg(String[] args, int i, int def) { return args.length > i ? Integer.parseInt(args[i]) : def; }
+
+        static Path scratchDir() throws IOException {
+            Path dir = Files.createTempDirectory("skyconnect-bench");
+            DatabaseManager.useDirectory(dir.toString());
+            return dir;
+        }
+
+        // Synthetic schedule: flights with ids F<n>, bookings spread round-robin over them
+        static void generate(Path dir, int nFlights, int nBookings) throws IOException { generate(dir, nFlights, nBookings, 1); }
+
+        // Bookings are owned round-robin by users bench, bench1, bench2, ...
+        static void generate(Path dir, int nFlights, int nBookings, int nUsers) throws IOException {
+            String[] codes = {"DEL", "BOM", "BLR", "CCU", "MAA", "HYD", "AMD", "GOI", "PNQ", "IXB", "SXR", "IXL", "ATQ", "COK", "JAI", "LKO"};
+            try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(dir.resolve("users.csv").toFile())))) {
+                pw.println("username,password,name,isAdmin,wallet");
+                for(int u=0; u<nUsers; u++) pw.println(String.join(",", benchUser(u), "bench", benchName(u), "false", "75000.00"));
+            }
+            try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(dir.resolve("flights.csv").toFile())))) {
+                pw.println("id,origin,destination,time,price");
+                for(int i=0; i<nFlights; i++) {
+                    String org = codes[i % codes.length], dst = codes[(i / codes.length + i + 1) % codes.length];
+                    pw.println(String.join(",", "F" + i, org, dst, String.format("%02d:%02d", i % 24, (i * 5) % 60), String.valueOf(3000 + i % 5000)));
+                }
+            }
+            try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(dir.resolve("bookings.csv").toFile())))) {
+                pw.println(DatabaseManager.BOOKINGS_HEADER);
+                LocalDate tomorrow = LocalDate.now().plusDays(1);
+                for(int i=0; i<nBookings; i++) {
+                    int seat = (i / nFlights) % 32;
+                    String date = tomorrow.plusDays(i / (nFlights * 32L) % (InventoryStore.windowDays - 1)).toString(); // next day once every seat is sold
+                    pw.println(String.join(",", "PNR-" + i, "F" + (i % nFlights), (seat / 4 + 1) + "" + (char)('A' + seat % 4), benchName(i % nUsers), "ECONOMY", "NONE", "4000.0", benchUser(i % nUsers), date));
+                }
+            }
+        }
+
+        static String benchUser(int u) { return u == 0 ? "bench" : "bench" + u; }
+        static String benchName(int u) { return u == 0 ? "Bench User" : "Bench User " + u; }
+
+        static void startup(int nFlights, int nBookings) throws IOException {
+            Path dir = scratchDir();
+            generate(dir, nFlights, nBookings);
+            System.out.printf("startup: %,d flights, %,d bookings%n", nFlights, nBookings);
+
+            long t0 = System.nanoTime();
+            DataStore.refreshData();
+            long indexed = System.nanoTime() - t0;
+            System.out.printf("  refreshData (indexed)     %,10d ms  (%,d tickets)%n", indexed / 1_000_000, DataStore.tickets.size());
+
+            t0 = System.nanoTime();
+            Snapshot.write(DatabaseManager.snapshotFile());
+            System.out.printf("  snapshot write            %,10d ms  (%,d KB)%n", (System.nanoTime() - t0) / 1_000_000, new File(DatabaseManager.snapshotFile()).length() / 1024);
+            DatabaseManager.snapshots = true;
+            t0 = System.nanoTime();
+            DataStore.refreshData();
+            long mapped = System.nanoTime() - t0;
+            DatabaseManager.snapshots = false;
+            System.out.printf("  refreshData (snapshot)    %,10d ms  (%,d tickets)%n", mapped / 1_000_000, DataStore.tickets.size());
+
+            // Reference: the old per-line stream scan, on the same file and flight list
+            List<Flight> flights = DatabaseManager.loadFlights();
+            int matched = 0, lines = 0;
+            long budget = 10_000_000_000L; // stop after 10s and extrapolate
+            t0 = System.nanoTime();
+            try (BufferedReader br = new BufferedReader(new FileReader(dir.resolve("bookings.csv").toFile()))) {
+                String line; br.readLine();
+                while ((line = br.readLine()) != null && System.nanoTime() - t0 < budget) {
+                    String flightId = line.split(",")[1];
+                    if(flights.stream().filter(fl -> fl.id.equals(flightId)).findFirst().orElse(null) != null) matched++;
+                    lines++;
+                }
+            }
+            long scan = (System.nanoTime() - t0) * nBookings / Math.max(1, lines);
+            System.out.printf("  booking load (stream scan) %,10d ms  (%s)%n", scan / 1_000_000, lines < nBookings ? "extrapolated from " + lines + " lines" : matched + " matched");
+            System.out.printf("  speedup                    %,10.1fx%n", (double) scan / Math.max(1, indexed));
+        }
+
+        interface Op { void run(int i) throws Exception; }
+
+        // Hot-path suite in the spirit of a JMH run: each scenario is warmed up, then timed op by
+        // op for a fixed window, reporting throughput, latency percentiles, allocation per op
+        // (ThreadMXBean) and collector activity (GarbageCollectorMXBeans). The same scenarios run
+        // under JMH from src/jmh (gradle jmh); this is the quick check that needs no build.
+        static void suite(int nFlights, int nBookings, int nUsers, int seconds) throws IOException {
+            Map<String, java.util.function.IntFunction<Object>> reads = readScenarios(nFlights, nBookings, nUsers);
+            System.out.printf("suite: %,d flights, %,d bookings, %,d users, %ds per scenario%n", nFlights, nBookings, nUsers, seconds);
+            for(Map.Entry<String, java.util.function.IntFunction<Object>> e : reads.entrySet()) measure(e.getKey(), seconds, Integer.MAX_VALUE, e.getValue()::apply);
+
+            // Persistence rewrites whole files in CSV mode, so it runs on a smaller store
+            int pBookings = Math.min(nBookings, 20000), pUsers = Math.min(nUsers, 1000);
+            for(String storage : new String[] { "csv", "journal", "kv" }) {
+                Map<String, java.util.function.IntFunction<Object>> writes = writeScenarios(storage, pBookings, pUsers);
+                int stored = DataStore.tickets.size();
+                String mode = " (" + storage + ")";
+                System.out.printf("  -- persistence%s: %,d bookings, %,d users%n", mode, pBookings, pUsers);
+                for(Map.Entry<String, java.util.function.IntFunction<Object>> e : writes.entrySet()) {
+                    // saveBooking is capped so the delete pass sees a comparable file; each delete removes one stored booking
+                    int maxOps = e.getKey().equals("saveBooking") ? 100_000 : e.getKey().equals("deleteBooking") ? stored : Integer.MAX_VALUE;
+                    measure(e.getKey() + mode, seconds, maxOps, e.getValue()::apply);
+                }
+                closeScenarios();
+            }
+        }
+
+        // The suite's in-memory scenarios by name, over a freshly generated store. Each takes the
+        // op number and returns its result, so a harness can consume it. The JMH benchmarks reach
+        // these by reflection, since AirlineApp lives in the default package.
+        static Map<String, java.util.function.IntFunction<Object>> readScenarios(int nFlights, int nBookings, int nUsers) throws IOException {
+            generate(scratchDir(), nFlights, nBookings, nUsers);
+            DataStore.refreshData();
+            Map<String, java.util.function.IntFunction<Object>> s = new LinkedHashMap<>();
+            s.put("refreshData", i -> { DataStore.refreshData(); return DataStore.tickets.size(); });
+
+            List<Flight> flights = new ArrayList<>(DataStore.flights);
+            Random rnd = new Random(5);
+            String[] queries = new String[1024];
+            for(int q=0; q<queries.length; q++) {
+                Flight a = flights.get(rnd.nextInt(flights.size())), b = flights.get(rnd.nextInt(flights.size()));
+                queries[q] = q % 3 == 0 ? a.org : q % 3 == 1 ? a.dst.substring(0, 1) : a.org + "-" + b.dst;
+            }
+            s.put("search", i -> BookingService.search(queries[i & 1023]));
+            // What the flight list in bookFlight pays per screen: one fare per listed flight (up to 1000)
+            List<FlightInstance> departures = new ArrayList<>();
+            for(Flight f : flights) departures.add(InventoryStore.instance(f, LocalDate.now().plusDays(1)));
+            List<FlightInstance> listed = departures.subList(0, Math.min(1000, departures.size()));
+            s.put("fareList", i -> {
+                long sum = 0;
+                for(FlightInstance fi : listed) sum += PricingEngine.fare(fi, CabinClass.ECONOMY);
+                return sum;
+            });
+            s.put("fareListRecomputed", i -> {
+                long now = System.currentTimeMillis(), sum = 0;
+                for(FlightInstance fi : listed) sum += PricingEngine.price(fi, CabinClass.ECONOMY, now).fare;
+                return sum;
+            });
+            s.put("departures7Days", i -> BookingService.departures(queries[i & 1023], LocalDate.now(), LocalDate.now().plusDays(6)));
+            s.put("holdNextFree", i -> {
+                BookingService.Result<BookingService.SeatHold> r = BookingService.holdNextFree(departures.get(i % departures.size()), CabinClass.ECONOMY);
+                if(r.ok) BookingService.releaseHold(r.value);
+                return r;
+            });
+            s.put("holdByCode", i -> {
+                FlightInstance fi = departures.get(i % departures.size());
+                SeatLayout l = fi.f.layout;
+                BookingService.Result<BookingService.SeatHold> r = BookingService.holdSeat(fi, CabinClass.ECONOMY, l.seatCode(l.startRow(CabinClass.ECONOMY) * l.seatsPerRow + i % l.capacity(CabinClass.ECONOMY)));
+                if(r.ok) BookingService.releaseHold(r.value);
+                return r;
+            });
+            s.put("analytics", i -> {
+                double sink = Analytics.total.revenue.sum() + Analytics.total.bookings.sum() + Analytics.total.loadFactor();
+                for(Analytics.Tally t : Analytics.byCabin) sink += t.revenue.sum() + t.loadFactor();
+                for(Analytics.Tally t : Analytics.byMeal) sink += t.revenue.sum();
+                return sink + Analytics.top(Analytics.byRoute, 5).size() + Analytics.top(Analytics.byFlight, 5).size();
+            });
+            s.put("analyticsTicketScan", i -> DataStore.tickets.values().stream().mapToLong(t -> t.paidPrice).sum());
+            LocalDate tomorrow = LocalDate.now().plusDays(1);
+            s.put("manifest", i -> DataStore.manifest(flights.get(i % flights.size()).id, tomorrow, tomorrow).size());
+            s.put("manifestTicketScan", i -> DataStore.tickets.values().stream().filter(t -> t.f == flights.get(i % flights.size()) && t.date.equals(tomorrow)).count());
+            return s;
+        }
+
+        // The suite's persistence scenarios against one storage mode (csv, journal or kv) on 200 flights.
+        // deleteBooking removes the i-th stored booking, so it runs at most once per booking per store.
+        // Call closeScenarios() when done.
+        static Map<String, java.util.function.IntFunction<Object>> writeScenarios(String storage, int nBookings, int nUsers) throws IOException {
+            generate(scratchDir(), 200, nBookings, nUsers);
+            DatabaseManager.journaled = storage.equals("journal");
+            DatabaseManager.engine = parseStorage(storage.equals("kv") ? "kv" : "csv");
+            DatabaseManager.initDB();
+            DataStore.refreshData();
+
+            List<Flight> pf = new ArrayList<>(DataStore.flights);
+            List<User> users = new ArrayList<>(DataStore.users.values());
+            List<Ticket> saved = new ArrayList<>(DataStore.tickets.values());
+            Map<String, java.util.function.IntFunction<Object>> s = new LinkedHashMap<>();
+            s.put("saveBooking", i -> {
+                Flight f = pf.get(i % pf.size());
+                User u = users.get(i % users.size());
+                Ticket t = new Ticket(f, LocalDate.now(), f.layout.seatCode(i % f.layout.capacity()), u.name, u.username, CabinClass.ECONOMY, MealType.NONE, Money.rupees(4000), PnrGenerator.next());
+                DatabaseManager.saveBooking(t);
+                return t;
+            });
+            s.put("updateUserWallet", i -> {
+                User u = users.get(i % users.size());
+                u.wallet += 1;
+                DatabaseManager.updateUserWallet(u);
+                return u;
+            });
+            s.put("topUp", i -> BookingService.topUp(users.get(i % users.size()), 100));
+            s.put("getBooking", i -> DatabaseManager.engine.get(StorageEngine.Table.BOOKINGS, saved.get(i % saved.size()).bookingId));
+            s.put("scanBookingsByUser", i -> {
+                int[] n = new int[1];
+                DatabaseManager.engine.scan(StorageEngine.Index.BOOKINGS_BY_USER, users.get(i % users.size()).username, row -> n[0]++);
+                return n[0];
+            });
+            s.put("deleteBooking", i -> { DatabaseManager.deleteBooking(saved.get(i).bookingId); return i; });
+            return s;
+        }
+
+        static void closeScenarios() {
+            DatabaseManager.shutdown();
+            DatabaseManager.journaled = false;
+            DatabaseManager.engine = new DatabaseManager.CsvStorage();
+        }
+
+        static void measure(String label, int seconds, int maxOps, Op op) {
+            long window = seconds * 1_000_000_000L;
+            try {
+                // Warm-up: half the window, unrecorded, so the JIT has compiled the path
+                int i = 0;
+                for(long t0 = System.nanoTime(); System.nanoTime() - t0 < window / 2 && i < maxOps; i++) op.run(i);
+
+                long[] lat = new long[1024];
+                int n = 0;
+                long gcCount = gcCount(), gcTime = gcMillis(), a0 = allocatedBytes(), start = System.nanoTime();
+                while(System.nanoTime() - start < window && n < maxOps) {
+                    long t0 = System.nanoTime();
+                    op.run(n);
+                    long t1 = System.nanoTime();
+                    if(n == lat.length) lat = Arrays.copyOf(lat, n * 2);
+                    lat[n++] = t1 - t0;
+                }
+                long nanos = System.nanoTime() - start, bytes = allocatedBytes() - a0;
+                if(n == 0) return;
+                Arrays.sort(lat, 0, n);
+                report(label, n, nanos);
+                System.out.printf("      p50 %s  p99 %s  p99.9 %s  alloc %,d B/op  gc %d (%d ms)%n",
+                    duration(lat[n / 2]), duration(lat[(int) (n * 0.99)]), duration(lat[(int) (n * 0.999)]),
+                    bytes / n, gcCount() - gcCount, gcMillis() - gcTime);
+            } catch (Exception e) { System.out.println(RED + "  " + label + " failed: " + e + RESET); }
+        }
+
+        static String duration(long nanos) {
+            return nanos >= 1_000_000 ? String.format("%.2f ms", nanos / 1e6) : String.format("%.2f us", nanos / 1e3);
+        }
+
+        static long gcCount() {
+            long n = 0;
+            for(java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory.getGarbageCollectorMXBeans()) n += Math.max(0, gc.getCollectionCount());
+            return n;
+        }
+
+        static long gcMillis() {
+            long n = 0;
+            for(java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory.getGarbageCollectorMXBeans()) n += Math.max(0, gc.getCollectionTime());
+            return n;
+        }
+
+        // bookings.csv load through CsvReader against the old readLine/split loader, best of a few rounds
+        static void csv(int nFlights, int nBookings) throws IOException {
+            Path dir = scratchDir();
+            generate(dir, nFlights, nBookings);
+            System.out.printf("csv: %,d flights, %,d bookings%n", nFlights, nBookings);
+            Path file = dir.resolve("bookings.csv");
+
+            long[] best = { Long.MAX_VALUE, Long.MAX_VALUE }, bytes = new long[2];
+            for(int round = 0; round < 3; round++) {
+                for(int impl = 0; impl < 2; impl++) {
+                    Map<String, Flight> flights = new HashMap<>();
+                    for(Flight f : DatabaseManager.loadFlights()) flights.put(f.id, f);
+                    Map<String, Ticket> tickets = new HashMap<>(nBookings * 2);
+                    long a0 = allocatedBytes(), t0 = System.nanoTime();
+                    if(impl == 0) {
+                        try (BufferedReader br = Files.newBufferedReader(file)) {
+                            String line; br.readLine();
+                            while ((line = br.readLine()) != null) {
+                                String[] data = line.split(",");
+                                if(data.length >= 7 && !tickets.containsKey(data[0])) {
+                                    Ticket t = DatabaseManager.parseBooking(data, flights);
+                                    if(t != null) tickets.put(t.bookingId, t);
+                                }
+                            }
+                        }
+                    } else {
+                        DatabaseManager.loadBookings(flights, tickets);
+                    }
+                    long nanos = System.nanoTime() - t0;
+                    if(nanos < best[impl]) { best[impl] = nanos; bytes[impl] = allocatedBytes() - a0; }
+                }
+            }
+            report("readLine + split", nBookings, best[0]);
+            System.out.printf("      %,d bytes allocated per row%n", bytes[0] / nBookings);
+            report("CsvReader", nBookings, best[1]);
+            System.out.printf("      %,d bytes allocated per row%n", bytes[1] / nBookings);
+        }
+
+        // Bytes allocated by this thread so far, where the JVM can tell us; 0 otherwise
+        static long allocatedBytes() {
+            java.lang.management.ThreadMXBean mx = java.lang.management.ManagementFactory.getThreadMXBean();
+            return mx instanceof com.sun.management.ThreadMXBean ? ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+        }
+
+        // saveFlight throughput per sync policy, against the old open-per-append writer
+        static void append(int rows) throws IOException {
+            Path dir = scratchDir();
+            generate(dir, 1, 0);
+            System.out.printf("append: %,d rows%n", rows);
+
+            long t0 = System.nanoTime();
+            for(int i=0; i<rows; i++) {
+                try (PrintWriter pw = new PrintWriter(new FileWriter(dir.resolve("reference.csv").toFile(), true))) {
+                    pw.println(String.join(",", "F" + i, "DEL", "BOM", "08:00", "5500.0"));
+                }
+            }
+            report("open-per-append", rows, System.nanoTime() - t0);
+
+            for(DatabaseManager.SyncPolicy policy : DatabaseManager.SyncPolicy.values()) {
+                DatabaseManager.syncPolicy = policy;
+                int n = policy == DatabaseManager.SyncPolicy.PER_WRITE ? Math.min(rows, 2000) : rows;
+                t0 = System.nanoTime();
+                for(int i=0; i<n; i++) DatabaseManager.saveFlight(new Flight("F" + i, "DEL", "BOM", "08:00", Money.rupees(5500)));
+                DatabaseManager.shutdown();
+                report(policy.name(), n, System.nanoTime() - t0);
+            }
+        }
+
+        // Parallel seat grabs + wallet debits against a shared store. Checks afterwards that no
+        // seat was sold twice and no wallet went below zero, at 1, 2, 4 ... maxThreads threads.
+        static void stress(int maxThreads, int nFlights, int attempts) throws IOException {
+            Path dir = scratchDir();
+            generate(dir, nFlights, 0);
+            DatabaseManager.journaled = true; // constant-cost wallet writes
+            DatabaseManager.syncPolicy = DatabaseManager.SyncPolicy.ON_SHUTDOWN;
+            DatabaseManager.initDB();
+            System.out.printf("stress: %,d flights x 32 seats, %,d booking attempts per round%n", nFlights, attempts);
+
+            for(int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+                DataStore.refreshData();
+                List<User> passengers = new ArrayList<>();
+                for(int i=0; i<64; i++) {
+                    User u = new User("p" + i, "x", "Passenger " + i, false);
+                    u.wallet = Money.rupees(4000) * 200; // affords 200 bookings, far fewer than attempted
+                    DataStore.users.put(u.username, u);
+                    passengers.add(u);
+                }
+                List<FlightInstance> flights = new ArrayList<>();
+                for(Flight f : DataStore.flights) flights.add(InventoryStore.next(f));
+                LongAdder booked = new LongAdder();
+                int perThread = attempts / threads;
+
+                List<Thread> workers = new ArrayList<>();
+                for(int w=0; w<threads; w++) {
+                    workers.add(new Thread(() -> {
+                        Random rnd = new Random();
+                        for(int i=0; i<perThread; i++) {
+                            FlightInstance fi = flights.get(rnd.nextInt(flights.size()));
+                            int idx = rnd.nextInt(fi.f.layout.capacity());
+                            if(!DataStore.reserveSeat(fi, idx)) continue;
+                            User u = passengers.get(rnd.nextInt(passengers.size()));
+                            String pnr = PnrGenerator.next(), seat = fi.f.layout.seatCode(idx);
+                            if(!u.tryDebit(Money.rupees(4000), pnr)) { DataStore.releaseSeat(fi, idx); continue; }
+                            DataStore.addTicket(new Ticket(fi.f, fi.date, seat, u.name, u.username, CabinClass.ECONOMY, MealType.NONE, Money.rupees(4000), pnr));
+                            booked.increment();
+                        }
+                    }));
+                }
+                long t0 = System.nanoTime();
+                for(Thread t : workers) t.start();
+                for(Thread t : workers) {
+                    try { t.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+                }
+                long nanos = System.nanoTime() - t0;
+
+                Set<String> sold = new HashSet<>();
+                int doubleBooked = 0, marked = 0, overdrawn = 0;
+                for(Ticket t : DataStore.tickets.values()) if(!sold.add(t.f.id + "/" + t.date + "/" + t.seat)) doubleBooked++;
+                for(FlightInstance fi : flights) for(int i=0; i<fi.f.layout.capacity(); i++) if(fi.seats.isTaken(i)) marked++;
+                for(User u : passengers) if(u.wallet < 0) overdrawn++;
+                report(threads + " threads", perThread * threads, nanos);
+                System.out.printf("      booked %,d  seats marked %,d  double-booked %d  overdrawn wallets %d  analytics drift %d%n", booked.sum(), marked, doubleBooked, overdrawn, Analytics.total.live.sum() - DataStore.tickets.size());
+                if(threads == maxThreads) break;
+            }
+            DatabaseManager.shutdown();
+        }
+
+        // Route index against the old linear filter, for exact codes, prefixes and city pairs
+        static void search(int nFlights, int queries) {
+            Random rnd = new Random(7);
+            String[] codes = new String[400];
+            for(int i=0; i<codes.length; i++) codes[i] = "" + (char)('A' + rnd.nextInt(26)) + (char)('A' + rnd.nextInt(26)) + (char)('A' + rnd.nextInt(26));
+            DataStore.flights = new CopyOnWriteArrayList<>();
+            DataStore.flightIndex = new ConcurrentHashMap<>();
+            DataStore.routes = new RouteIndex();
+            List<Flight> batch = new ArrayList<>();
+            for(int i=0; i<nFlights; i++) {
+                Flight f = new Flight("F" + i, codes[rnd.nextInt(codes.length)], codes[rnd.nextInt(codes.length)], String.format("%02d:%02d", i % 24, i % 60), Money.rupees(3000));
+                batch.add(f);
+                DataStore.flightIndex.put(f.id, f);
+                DataStore.routes.add(f);
+            }
+            DataStore.flights.addAll(batch);
+            System.out.printf("search: %,d flights over %d airports, %,d queries each%n", nFlights, codes.length, queries);
+
+            String[][] workloads = new String[3][queries];
+            for(int q=0; q<queries; q++) {
+                String a = codes[rnd.nextInt(codes.length)], b = codes[rnd.nextInt(codes.length)];
+                workloads[0][q] = a;
+                workloads[1][q] = a.substring(0, 2);
+                workloads[2][q] = a + "-" + b;
+            }
+            String[] names = {"city code", "2-letter prefix", "city pair"};
+            for(int w=0; w<workloads.length; w++) {
+                long hits = 0, t0 = System.nanoTime();
+                for(String q : workloads[w]) {
+                    String[] legs = q.split("-");
+                    hits += DataStore.flights.stream()
+                        .filter(f -> legs.length == 2 ? f.org.equals(legs[0]) && f.dst.equals(legs[1]) : f.org.contains(q) || f.dst.contains(q))
+                        .count();
+                }
+                long scan = System.nanoTime() - t0;
+                long indexed = 0;
+                t0 = System.nanoTime();
+                for(String q : workloads[w]) indexed += BookingService.search(q).size();
+                long idx = System.nanoTime() - t0;
+                report(names[w] + " scan", queries, scan);
+                report(names[w] + " index", queries, idx);
+                System.out.printf("      avg results %.1f (scan) / %.1f (index), speedup %.0fx%n", (double) hits / queries, (double) indexed / queries, (double) scan / idx);
+            }
+        }
+
+        // Cheapest / fastest up-to-2-stop journeys between random airports on a synthetic network
+        static void itinerary(int legs, int queries) {
+            Random rnd = new Random(11);
+            String[] codes = new String[300];
+            for(int i=0; i<codes.length; i++) codes[i] = String.format("A%02d", i);
+            DataStore.flights = new CopyOnWriteArrayList<>();
+            DataStore.flightIndex = new ConcurrentHashMap<>();
+            DataStore.routes = new RouteIndex();
+            for(int i=0; i<legs; i++) {
+                int o = rnd.nextInt(codes.length), d = (o + 1 + rnd.nextInt(codes.length - 1)) % codes.length;
+                Flight f = new Flight("L" + i, codes[o], codes[d], String.format("%02d:%02d", rnd.nextInt(24), rnd.nextInt(12) * 5), Money.rupees(2000 + rnd.nextInt(8000)));
+                f.duration = 60 + rnd.nextInt(180);
+                DataStore.flightIndex.put(f.id, f);
+                DataStore.routes.add(f);
+            }
+            DataStore.scheduleVersion.incrementAndGet();
+            System.out.printf("itinerary: %,d legs over %d airports, %d queries per objective%n", legs, codes.length, queries);
+
+            for(ItinerarySearch.Objective o : ItinerarySearch.Objective.values()) {
+                long[] lat = new long[queries];
+                int found = 0;
+                for(int q=0; q<queries; q++) {
+                    String a = codes[rnd.nextInt(codes.length)], b = codes[rnd.nextInt(codes.length)];
+                    long t0 = System.nanoTime();
+                    found += ItinerarySearch.search(a, b, LocalDate.now().plusDays(1), 2, o, 5).size();
+                    lat[q] = System.nanoTime() - t0;
+                }
+                Arrays.sort(lat);
+                long total = 0;
+                for(long l : lat) total += l;
+                report(o.name(), queries, total);
+                System.out.printf("      p50 %.2f ms  p99 %.2f ms  avg itineraries %.1f%n", lat[queries / 2] / 1e6, lat[queries * 99 / 100] / 1e6, (double) found / queries);
+            }
+        }
+
+        // Hundreds of simulated agents, each on its own socket session, booking random economy seats
+        static void server(int clients, int bookingsPerClient) throws IOException {
+            Path dir = scratchDir();
+            generate(dir, 2000, 0);
+            DatabaseManager.journaled = true;
+            DatabaseManager.syncPolicy = DatabaseManager.SyncPolicy.GROUP_COMMIT;
+            DatabaseManager.initDB();
+            DataStore.refreshData();
+            ServerSocket server = BookingServer.start(0);
+            int port = server.getLocalPort();
+            System.out.printf("server: %d clients x %d bookings on port %d%n", clients, bookingsPerClient, port);
+
+            LongAdder ok = new LongAdder(), rejected = new LongAdder();
+            ExecutorService pool = BookingServer.sessionExecutor();
+            CountDownLatch done = new CountDownLatch(clients);
+            long t0 = System.nanoTime();
+            for(int i=0; i<clients; i++) {
+                final int id = i;
+                pool.execute(() -> {
+                    try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+                         BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                         PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true)) {
+                        Random rnd = new Random(id);
+                        out.println("REGISTER agent" + id + " pw Agent " + id); in.readLine();
+                        out.println("LOGIN agent" + id + " pw"); in.readLine();
+                        out.println("TOPUP 10000000"); in.readLine();
+                        for(int b=0; b<bookingsPerClient; b++) {
+                            String seat = (5 + rnd.nextInt(4)) + "" + (char)('A' + rnd.nextInt(4));
+                            out.println("BOOK F" + rnd.nextInt(2000) + " ECONOMY " + seat + " NONE");
+                            if(in.readLine().startsWith("OK")) ok.increment(); else rejected.increment();
+                        }
+                        out.println("QUIT");
+                    } catch (IOException e) { System.out.println(RED + "Client Error: " + e.getMessage() + RESET); }
+                    finally { done.countDown(); }
+                });
+            }
+            try { done.await(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            long nanos = System.nanoTime() - t0;
+            pool.shutdown();
+            server.close();
+            report("BOOK round trips", ok.sum() + rejected.sum(), nanos);
+            System.out.printf("      confirmed %,d  rejected %,d  tickets in store %,d%n", ok.sum(), rejected.sum(), DataStore.tickets.size());
+            DatabaseManager.shutdown();
+        }
+
+        // Raw id throughput across threads, then a uniqueness check over everything issued
+        static void pnr(int threads, int perThread) throws IOException {
+            scratchDir();
+            System.out.printf("pnr: %d threads x %,d ids%n", threads, perThread);
+            PnrGenerator.reset();
+            String[][] issued = new String[threads][perThread];
+            List<Thread> workers = new ArrayList<>();
+            for(int w=0; w<threads; w++) {
+                String[] out = issued[w];
+                workers.add(new Thread(() -> { for(int i=0; i<out.length; i++) out[i] = PnrGenerator.next(); }));
+            }
+            long t0 = System.nanoTime();
+            for(Thread t : workers) t.start();
+            for(Thread t : workers) {
+                try { t.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+            long nanos = System.nanoTime() - t0;
+            report("PnrGenerator.next", (long) threads * perThread, nanos);
+
+            Set<String> seen = new HashSet<>(threads * perThread * 2);
+            long dupes = 0;
+            for(String[] out : issued) for(String pnr : out) if(!seen.add(pnr)) dupes++;
+            System.out.printf("      last %s  duplicates %,d%n", issued[threads - 1][perThread - 1], dupes);
+        }
+
+        // Bulk booking import on each backend: fork-join validation, then batches of
+        // BulkImporter.batchSize committed with one sync each
+        static void importer(int nBookings, int nUsers) throws IOException {
+            int nFlights = Math.max(200, nBookings / 200);
+            System.out.printf("import: %,d bookings over %,d flights, %,d users, batches of %,d%n", nBookings, nFlights, nUsers, BulkImporter.batchSize);
+            for(String storage : new String[] { "csv", "journal", "kv" }) {
+                Path dir = scratchDir();
+                generate(dir, nFlights, 0, nUsers);
+                DatabaseManager.journaled = storage.equals("journal");
+                DatabaseManager.engine = parseStorage(storage.equals("kv") ? "kv" : "csv");
+                DatabaseManager.initDB();
+                DataStore.refreshData();
+                for(User u : DataStore.users.values()) u.wallet = Money.rupees(10_000_000_000L); // so wallets never reject a batch
+
+                Path file = dir.resolve("import.csv");
+                LocalDate tomorrow = LocalDate.now().plusDays(1);
+                try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(file.toFile())))) {
+                    pw.println(BulkImporter.BOOKINGS_HEADER);
+                    for(int i=0; i<nBookings; i++) { // 16 economy seats per regional departure, then the next day
+                        pw.println(String.join(",", benchUser(i % nUsers), "F" + (i % nFlights), tomorrow.plusDays(i / nFlights / 16 % 300).toString(), "ECONOMY", "ANY", i % 4 == 0 ? "VEG" : ""));
+                    }
+                }
+                BulkImporter.Report r = BulkImporter.importFile(file.toString());
+                report("import (" + storage + ")", r.rows, r.nanos);
+                System.out.printf("      imported %,d  invalid %,d  batches %,d  rejected %,d%n", r.applied, r.invalid, r.batches, r.rejected);
+                for(String e : r.errors) System.out.println("      " + e);
+                DatabaseManager.shutdown();
+            }
+            DatabaseManager.journaled = false;
+            DatabaseManager.engine = new DatabaseManager.CsvStorage();
+        }
+
+        // A departure wave: one day's manifests for every flight, written in parallel, against
+        // the single-flight lookups the admin screen makes
+        static void manifest(int nFlights, int nBookings, int seconds) throws IOException {
+            Path dir = scratchDir();
+            generate(dir, nFlights, nBookings);
+            DatabaseManager.initDB();
+            DataStore.refreshData();
+            LocalDate tomorrow = LocalDate.now().plusDays(1);
+            List<Flight> flights = new ArrayList<>(DataStore.flights);
+            System.out.printf("manifest: %,d flights, %,d bookings, %,d departing %s%n", nFlights, nBookings,
+                flights.stream().mapToInt(f -> DataStore.manifest(f.id, tomorrow, tomorrow).size()).sum(), tomorrow);
+            measure("one flight (index)", seconds, Integer.MAX_VALUE, i -> DataStore.manifest(flights.get(i % flights.size()).id, tomorrow, tomorrow).size());
+            measure("one flight (ticket scan)", seconds, 200, i -> DataStore.tickets.values().stream().filter(t -> t.f == flights.get(i % flights.size()) && t.date.equals(tomorrow)).count());
+            for(int round = 0; round < 3; round++) { // the first round pays for class loading and the JIT
+                ManifestExport.Report r = ManifestExport.export(tomorrow, flights, dir.resolve("manifests").toString());
+                report("export all flights", (int) r.files.sum(), r.nanos);
+                System.out.printf("      %,d passengers, %,d KB, %d errors%n", r.passengers.sum(), r.bytes.sum() / 1024, r.errors.size());
+            }
+            DatabaseManager.shutdown();
+        }
+
+        // Outstanding seat holds at scale: n holds spread over dated departures, then waits for the
+        // timer wheel to expire them and checks every seat was given back
+        static void holds(int n, int ttlSeconds) throws IOException {
+            Path dir = scratchDir();
+            int nFlights = 2000, days = 300;
+            generate(dir, nFlights, 0);
+            DataStore.refreshData();
+            System.out.printf("holds: %,d holds over %,d flights x %d days, ttl %ds%n", n, nFlights, days, ttlSeconds);
+            HoldTimer.ttlMillis = ttlSeconds * 1000L;
+            List<Flight> flights = new ArrayList<>(DataStore.flights);
+            CabinClass[] cabins = CabinClass.values();
+            LocalDate tomorrow = LocalDate.now().plusDays(1);
+            List<FlightInstance> touched = new ArrayList<>();
+            long before = HoldTimer.expired.sum(), held = 0;
+
+            long t0 = System.nanoTime();
+            for(int i=0; i<n; i++) {
+                FlightInstance fi = InventoryStore.instance(flights.get(i % nFlights), tomorrow.plusDays(i / nFlights % days));
+                if(i < nFlights * days) touched.add(fi);
+                if(BookingService.holdNextFree(fi, cabins[i / (nFlights * days) % cabins.length]).ok) held++;
+            }
+            report("hold (next free)", n, System.nanoTime() - t0);
+
+            long deadline = System.currentTimeMillis() + ttlSeconds * 1000L;
+            while(HoldTimer.expired.sum() - before < held) {
+                try { Thread.sleep(10); } catch (InterruptedException e) { Thread.currentThread().interrupt(); return; }
+            }
+            long late = System.currentTimeMillis() - deadline, leaked = 0;
+            for(FlightInstance fi : touched) leaked += fi.seats.bookedSeats();
+            System.out.printf("      held %,d  expired %,d  last expiry %d ms after its deadline  seats still taken %,d%n", held, HoldTimer.expired.sum() - before, late, leaked);
+        }
+
+        static void report(String label, long ops, long nanos) {
+            System.out.printf("  %-28s %,12.0f ops/s  %,10.2f us/op%n", label, ops * 1e9 / nanos, nanos / 1e3 / ops);
+        }
+    }
+
     // --- CLASSES ---
     static class User {
         String username, pass, name;
         boolean isAdmin;
-        double wallet = 75000.00;
+        long wallet = Money.rupees(75000); // paise
         User(String u, String p, String n, boolean a) { username=u; pass=p; name=n; isAdmin=a; }
+
+        // Check-and-debit under the user's own monitor so parallel sessions cannot double-spend.
+        // Recording inside the monitor keeps ledger entries in balance order.
+        synchronized boolean tryDebit(long amt, String ref) {
+            if(!withdraw(amt)) return false;
+            DatabaseManager.WalletLedger.append(this, DatabaseManager.WalletLedger.Kind.DEBIT, amt, ref);
+            return true;
+        }
+
+        // Balance changes the caller records itself, e.g. once per bulk import batch
+        synchronized boolean withdraw(long amt) {
+            if(wallet < amt) return false;
+            wallet -= amt;
+            return true;
+        }
+
+        synchronized void deposit(long amt) { wallet += amt; }
+
+        synchronized void recordDebit(long amt, String ref) { DatabaseManager.WalletLedger.append(this, DatabaseManager.WalletLedger.Kind.DEBIT, amt, ref); }
+
+        synchronized void credit(long amt, DatabaseManager.WalletLedger.Kind kind, String ref) {
+            wallet += amt;
+            DatabaseManager.WalletLedger.append(this, kind, amt, ref);
+        }
     }
 
     static class Flight {
         String id, org, dst, time;
-        double price;
-        boolean[][] seats = new boolean[8][4];
-        Flight(String i, String o, String d, String t, double p) { id=i; org=o; dst=d; time=t; price=p; }
+        long price; // paise
+        final SeatLayout layout;
+        int duration = 120; // block minutes, for connection times
+        Flight(String i, String o, String d, String t, long p) { this(i, o, d, t, p, SeatLayout.REGIONAL); }
+        Flight(String i, String o, String d, String t, long p, SeatLayout l) { id=i; org=o; dst=d; time=t; price=p; layout=l; }
+    }
+
+    // One dated departure of a daily Flight, with that day's seats (see InventoryStore)
+    static class FlightInstance {
+        final Flight f;
+        final LocalDate date;
+        final SeatMap seats;
+        final PricingEngine.Point[] fares = new PricingEngine.Point[CabinClass.values().length]; // per cabin, see PricingEngine
+        private final AtomicReferenceArray<Ticket> passengers; // by seat index: the manifest, kept by DataStore.addTicket/removeTicket
+        FlightInstance(Flight f, LocalDate date) { this.f = f; this.date = date; seats = new SeatMap(f.layout); passengers = new AtomicReferenceArray<>(f.layout.capacity()); }
+
+        void board(Ticket t) { passengers.set(f.layout.seatIndex(t.seat), t); }
+        void unboard(Ticket t) { passengers.compareAndSet(f.layout.seatIndex(t.seat), t, null); }
+        boolean seated(Ticket t) { return passengers.get(f.layout.seatIndex(t.seat)) == t; }
+
+        // Appends this departure's tickets in seat order
+        void manifest(List<Ticket> out) {
+            for(int i=0; i<passengers.length(); i++) {
+                Ticket t = passengers.get(i);
+                if(t != null) out.add(t);
+            }
+        }
+
+        long departure() { return date.toEpochDay() * 1440 + ItinerarySearch.minutes(f.time); } // local minutes since the epoch
+    }
+
+    // Lock-free seat inventory: one bit per seat (row-major) in an AtomicLongArray, claimed with
+    // compare-and-set, plus a free counter per cabin so availability checks are O(1) and the next
+    // free seat is found with a trailing-zero count per 64 seats.
+    static class SeatMap {
+        final SeatLayout layout;
+        private final AtomicLongArray bits;
+        private final AtomicLongArray held; // the taken seats that are only held, not yet paid for
+        private final AtomicIntegerArray free = new AtomicIntegerArray(CabinClass.values().length);
+
+        SeatMap(SeatLayout layout) {
+            this.layout = layout;
+            this.bits = new AtomicLongArray((layout.capacity() + 63) >>> 6);
+            this.held = new AtomicLongArray(bits.length());
+            for(CabinClass cc : CabinClass.values()) free.set(cc.ordinal(), layout.capacity(cc));
+        }
+
+        boolean isTaken(int seat) { return (bits.get(seat >>> 6) & (1L << seat)) != 0; }
+
+        boolean isHeld(int seat) { return (held.get(seat >>> 6) & (1L << seat)) != 0; }
+
+        // Takes the seat and marks it held until unhold (paid) or releaseHeld (expired or abandoned)
+        boolean hold(int seat) {
+            if(!tryTake(seat)) return false;
+            mark(held, seat, true);
+            return true;
+        }
+
+        void unhold(int seat) { mark(held, seat, false); }
+
+        void releaseHeld(int seat) {
+            mark(held, seat, false);
+            release(seat);
+        }
+
+        private static void mark(AtomicLongArray words, int seat, boolean on) {
+            int w = seat >>> 6;
+            long bit = 1L << seat, cur;
+            do {
+                cur = words.get(w);
+            } while(!words.compareAndSet(w, cur, on ? cur | bit : cur & ~bit));
+        }
+
+        boolean tryTake(int seat) {
+            int w = seat >>> 6;
+            long bit = 1L << seat, cur;
+            do {
+                cur = bits.get(w);
+                if((cur & bit) != 0) return false;
+            } while(!bits.compareAndSet(w, cur, cur | bit));
+            free.decrementAndGet(layout.cabinOf(seat).ordinal());
+            return true;
+        }
+
+        boolean release(int seat) {
+            int w = seat >>> 6;
+            long bit = 1L << seat, cur;
+            do {
+                cur = bits.get(w);
+                if((cur & bit) == 0) return false;
+            } while(!bits.compareAndSet(w, cur, cur & ~bit));
+            free.incrementAndGet(layout.cabinOf(seat).ordinal());
+            return true;
+        }
+
+        // Bulk-loads taken seats from a packed bitmap (snapshot restore); only for a fresh map
+        void load(long[] words) {
+            for(int w=0; w<words.length; w++) {
+                bits.set(w, words[w]);
+                for(long x = words[w]; x != 0; x &= x - 1) free.decrementAndGet(layout.cabinOf((w << 6) + Long.numberOfTrailingZeros(x)).ordinal());
+            }
+        }
+
+        int freeSeats(CabinClass cc) { return free.get(cc.ordinal()); }
+
+        int bookedSeats() {
+            int booked = layout.capacity();
+            for(CabinClass cc : CabinClass.values()) booked -= free.get(cc.ordinal());
+            return booked;
+        }
+
+        // First free seat in the cabin, or -1 when it is full
+        int nextFree(CabinClass cc) {
+            if(freeSeats(cc) == 0) return -1;
+            int from = layout.startRow(cc) * layout.seatsPerRow, to = layout.endRow(cc) * layout.seatsPerRow;
+            for(int w = from >>> 6; w <= (to - 1) >>> 6; w++) {
+                long avail = ~bits.get(w);
+                if(w == from >>> 6) avail &= -1L << from;
+                if(w == (to - 1) >>> 6) avail &= -1L >>> (63 - ((to - 1) & 63));
+                if(avail != 0) return (w << 6) + Long.numberOfTrailingZeros(avail);
+            }
+            return -1;
+        }
     }
 
     static class Ticket {
         Flight f;
-        String seat, owner, bookingId;
+        LocalDate date; // departure date; tickets on one day share the partition's LocalDate
+        String seat, owner, username, bookingId; // owner is the display name printed on the pass
         CabinClass travelClass;
         MealType meal;
-        double paidPrice;
-        Ticket(Flight f, String s, String o, CabinClass tc, MealType m, double p, String bid) {
-            this.f=f; seat=s; owner=o; travelClass=tc; meal=m; paidPrice=p; bookingId=bid;
+        long paidPrice; // paise
+        Ticket(Flight f, LocalDate d, String s, String o, String un, CabinClass tc, MealType m, long p, String bid) {
+            this.f=f; date=d; seat=s; owner=o; username=un; travelClass=tc; meal=m; paidPrice=p; bookingId=bid;
         }
     }
 
@@ -0,0 +1,41 @@
+package skyconnect.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import org.openjdk.jmh.annotations.*;
+
+// A booking can only be deleted once, so each iteration gets a fresh store and times one batch of
+// deletes as a single shot; the score is the time for the whole batch.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, batchSize = DeleteBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = DeleteBenchmark.BATCH)
+@Fork(1)
+public class DeleteBenchmark {
+    static final int BATCH = 2000;
+
+    @Param({ "csv", "journal", "kv" }) public String storage;
+    @Param("20000") public int bookings;
+    @Param("1000") public int users;
+
+    private IntFunction<Object> op;
+    private int i;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        op = Scenarios.write("deleteBooking", storage, bookings, users);
+        i = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        Scenarios.close();
+    }
+
+    @Benchmark
+    public Object deleteBooking() {
+        return op.apply(i++);
+    }
+}
@@ -0,0 +1,36 @@
+package skyconnect.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import org.openjdk.jmh.annotations.*;
+
+// In-memory hot paths over a generated store: loading, search, fares, seat holds, analytics, manifests
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmarks {
+    @Param({ "refreshData", "search", "fareList", "fareListRecomputed", "departures7Days", "holdNextFree", "holdByCode",
+             "analytics", "analyticsTicketScan", "manifest", "manifestTicketScan" })
+    public String scenario;
+
+    @Param("20000") public int flights;
+    @Param("200000") public int bookings;
+    @Param("1000") public int users;
+
+    private IntFunction<Object> op;
+    private int i;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        op = Scenarios.read(scenario, flights, bookings, users);
+    }
+
+    @Benchmark
+    public Object run() {
+        return op.apply(i++ & Integer.MAX_VALUE);
+    }
+}
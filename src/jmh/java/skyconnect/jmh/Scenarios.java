@@ -0,0 +1,44 @@
+package skyconnect.jmh;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+// AirlineApp lives in the default package, which no named package can import, and JMH will not
+// generate benchmarks there. The scenarios themselves are defined once, in AirlineApp.Bench, and
+// looked up here by reflection at setup; the timed calls go straight through an IntFunction.
+final class Scenarios {
+    private Scenarios() { }
+
+    static IntFunction<Object> read(String name, int flights, int bookings, int users) {
+        return pick(invoke("readScenarios", new Class<?>[] { int.class, int.class, int.class }, flights, bookings, users), name);
+    }
+
+    static IntFunction<Object> write(String name, String storage, int bookings, int users) {
+        return pick(invoke("writeScenarios", new Class<?>[] { String.class, int.class, int.class }, storage, bookings, users), name);
+    }
+
+    static void close() {
+        invoke("closeScenarios", new Class<?>[0]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static IntFunction<Object> pick(Object scenarios, String name) {
+        IntFunction<Object> op = ((Map<String, IntFunction<Object>>) scenarios).get(name);
+        if(op == null) throw new IllegalArgumentException("no scenario " + name + " in " + ((Map<?, ?>) scenarios).keySet());
+        return op;
+    }
+
+    private static Object invoke(String method, Class<?>[] types, Object... args) {
+        try {
+            Method m = Class.forName("AirlineApp$Bench").getDeclaredMethod(method, types);
+            m.setAccessible(true);
+            return m.invoke(null, args);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(method + " failed", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("AirlineApp.Bench." + method + " not found", e);
+        }
+    }
+}
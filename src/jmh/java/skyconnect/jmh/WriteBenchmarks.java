@@ -0,0 +1,40 @@
+package skyconnect.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import org.openjdk.jmh.annotations.*;
+
+// Persistence calls in each storage mode. CSV mode rewrites whole files, so the store is small.
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmarks {
+    @Param({ "saveBooking", "updateUserWallet", "topUp", "getBooking", "scanBookingsByUser" })
+    public String scenario;
+
+    @Param({ "csv", "journal", "kv" }) public String storage;
+    @Param("20000") public int bookings;
+    @Param("1000") public int users;
+
+    private IntFunction<Object> op;
+    private int i;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        op = Scenarios.write(scenario, storage, bookings, users);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Scenarios.close();
+    }
+
+    @Benchmark
+    public Object run() {
+        return op.apply(i++ & Integer.MAX_VALUE);
+    }
+}